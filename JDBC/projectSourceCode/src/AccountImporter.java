@@ -0,0 +1,345 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk import of customers from a CSV file with the columns
+ * {@code full_name,email,password,balance,security_pin} (a header row is
+ * skipped; the balance is in rupees with up to two decimals). Each row becomes
+ * a {@code User}, an {@code Accounts} row and an opening {@link Ledger} entry,
+ * as if the customer had registered and called {@link Accounts#open_account}.
+ *
+ * The file is streamed in chunks, so memory stays bounded however large it is.
+ * While one chunk is being inserted, the next few are parsed and validated on
+ * a pool of worker threads. Each chunk reserves its account numbers with one
+ * {@link AccountNumberAllocator#reserve} call and is inserted with two
+ * {@code PreparedStatement} batches in a single transaction. If a chunk fails,
+ * for instance on an email that already exists, it is rolled back and replayed
+ * one row at a time, so only the bad rows are rejected.
+ *
+ * Rejected rows are written to an error file as
+ * {@code line,reason,original row}. Usage:
+ *
+ * <pre>
+ * java -cp out:mysql-connector.jar AccountImporter --url jdbc:mysql://localhost:3306/bank \
+ *      --user root --password secret --file customers.csv [--errors rejected.csv] [--chunk 1000]
+ * </pre>
+ */
+public class AccountImporter {
+    private static final String insert_user_query = "INSERT INTO User(full_name, email, password) VALUES(?, ?, ?)";
+    private static final String insert_account_query = "INSERT INTO Accounts(account_number, full_name, email, balance, security_pin) "
+            + "VALUES(?, ?, ?, ?, ?)";
+    private static final int default_chunk_size = 1000;
+    // Chunks validated ahead of the one being inserted.
+    private static final int validation_depth = 4;
+    private static final long progress_interval = 100_000;
+
+    private record Row(long line, String raw, String full_name, String email, String password, long balance, String security_pin) {
+    }
+
+    private record Rejected(long line, String raw, String reason) {
+    }
+
+    private record Chunk(List<Row> valid, List<Rejected> rejected) {
+    }
+
+    public record Report(long rows, long imported, long rejected, long elapsedNanos) {
+
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Import: rows=%d imported=%d rejected=%d elapsed=%.1fs rate=%.0f rows/s",
+                    rows, imported, rejected, elapsedNanos / 1e9, rowsPerSecond());
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final AccountNumberAllocator allocator;
+    private final BloomFilter userEmails;
+    private final BloomFilter accountEmails;
+    private final int chunkSize;
+
+    private long imported;
+    private long rejected;
+
+    /**
+     * The email filters are those of the running {@link User} and {@link Accounts},
+     * which must learn about the imported emails.
+     */
+    public AccountImporter(ConnectionPool pool, AccountNumberAllocator allocator,
+                           BloomFilter userEmails, BloomFilter accountEmails, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.pool = pool;
+        this.allocator = allocator;
+        this.userEmails = userEmails;
+        this.accountEmails = accountEmails;
+        this.chunkSize = chunkSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = CommandLineOptions.parse(args);
+        if (!options.containsKey("url") || !options.containsKey("file")) {
+            throw new IllegalArgumentException("--url and --file are required");
+        }
+        Path file = Path.of(options.get("file"));
+        Path errors = Path.of(options.getOrDefault("errors", file + ".rejected.csv"));
+        int chunkSize = Integer.parseInt(options.getOrDefault("chunk", String.valueOf(default_chunk_size)));
+        try (BankingSystem system = new BankingSystem(options.get("url"), options.getOrDefault("user", "root"),
+                options.getOrDefault("password", ""), 4, false, null, List.of(), List.of(), null, null)) {
+            Report report = system.importer(chunkSize).importFile(file, errors);
+            System.out.println(report);
+            if (report.rejected() > 0) {
+                System.out.println("Rejected rows written to " + errors);
+            }
+        }
+    }
+
+    /**
+     * Imports {@code csv}, writing rejected rows to {@code errors}. Only one import
+     * should run on an importer at a time.
+     */
+    public synchronized Report importFile(Path csv, Path errors) throws IOException, SQLException {
+        imported = 0;
+        rejected = 0;
+        long start = System.nanoTime();
+        long rows = 0;
+        long nextProgress = progress_interval;
+        ExecutorService validators = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        Deque<Future<Chunk>> validating = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+             BufferedWriter errorWriter = Files.newBufferedWriter(errors, StandardCharsets.UTF_8)) {
+            long line = 0;
+            List<String> lines = new ArrayList<>(chunkSize);
+            long firstLine = 1;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (line == 1 && text.toLowerCase().startsWith("full_name")) {
+                    firstLine = 2;
+                    continue;
+                }
+                lines.add(text);
+                rows++;
+                if (lines.size() == chunkSize) {
+                    submit(validators, validating, lines, firstLine);
+                    lines = new ArrayList<>(chunkSize);
+                    firstLine = line + 1;
+                    if (validating.size() > validation_depth) {
+                        insert(take(validating), errorWriter);
+                    }
+                }
+                if (rows >= nextProgress) {
+                    nextProgress += progress_interval;
+                    System.out.println(new Report(rows, imported, rejected, System.nanoTime() - start));
+                }
+            }
+            if (!lines.isEmpty()) {
+                submit(validators, validating, lines, firstLine);
+            }
+            while (!validating.isEmpty()) {
+                insert(take(validating), errorWriter);
+            }
+        } finally {
+            validators.shutdownNow();
+        }
+        return new Report(rows, imported, rejected, System.nanoTime() - start);
+    }
+
+    private static void submit(ExecutorService validators, Deque<Future<Chunk>> validating, List<String> lines, long firstLine) {
+        validating.addLast(validators.submit(() -> validate(lines, firstLine)));
+    }
+
+    private static Chunk take(Deque<Future<Chunk>> validating) throws SQLException {
+        try {
+            return validating.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while validating", e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Validation failed", e.getCause());
+        }
+    }
+
+    private static Chunk validate(List<String> lines, long firstLine) {
+        List<Row> valid = new ArrayList<>(lines.size());
+        List<Rejected> rejectedRows = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            long line = firstLine + i;
+            String raw = lines.get(i);
+            List<String> fields = split(raw);
+            String reason = null;
+            long balance = 0;
+            if (fields == null || fields.size() != 5) {
+                reason = "expected 5 fields";
+            } else if (fields.get(0).isBlank()) {
+                reason = "missing full name";
+            } else if (!isEmail(fields.get(1))) {
+                reason = "invalid email";
+            } else if (fields.get(2).isEmpty()) {
+                reason = "missing password";
+            } else if (fields.get(4).isEmpty() || fields.get(4).length() > 4) {
+                reason = "security pin must be 1 to 4 characters";
+            } else {
+                try {
+                    balance = Money.parse(fields.get(3).trim());
+                    if (balance < 0) {
+                        reason = "invalid balance";
+                    }
+                } catch (NumberFormatException e) {
+                    reason = "invalid balance";
+                }
+            }
+            if (reason != null) {
+                rejectedRows.add(new Rejected(line, raw, reason));
+            } else {
+                valid.add(new Row(line, raw, fields.get(0).trim(), fields.get(1).trim(), fields.get(2), balance, fields.get(4)));
+            }
+        }
+        return new Chunk(valid, rejectedRows);
+    }
+
+    private static boolean isEmail(String email) {
+        String trimmed = email.trim();
+        int at = trimmed.indexOf('@');
+        return at > 0 && at == trimmed.lastIndexOf('@') && at < trimmed.length() - 1 && trimmed.length() <= 255;
+    }
+
+    // Splits one CSV row, honouring double quotes; null if a quote is not closed.
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>(5);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private void insert(Chunk chunk, BufferedWriter errorWriter) throws IOException, SQLException {
+        for (Rejected row : chunk.rejected()) {
+            reject(errorWriter, row);
+        }
+        List<Row> rows = chunk.valid();
+        if (rows.isEmpty()) {
+            return;
+        }
+        // Reserve before borrowing: a reservation borrows a connection of its own.
+        long first_account_number = allocator.reserve(rows.size());
+        for (Row row : rows) {
+            // Add before inserting, so a committed email is never missing from the filters.
+            userEmails.add(row.email());
+            accountEmails.add(row.email());
+        }
+        boolean replay = false;
+        try (PooledConnection pooled = pool.borrow()) {
+            pooled.connection().setAutoCommit(false);
+            try {
+                PreparedStatement userPreparedStatement = pooled.prepare(insert_user_query);
+                PreparedStatement accountPreparedStatement = pooled.prepare(insert_account_query);
+                for (int i = 0; i < rows.size(); i++) {
+                    Row row = rows.get(i);
+                    bindUser(userPreparedStatement, row);
+                    userPreparedStatement.addBatch();
+                    bindAccount(accountPreparedStatement, row, first_account_number + i);
+                    accountPreparedStatement.addBatch();
+                    if (row.balance() > 0) {
+                        pooled.record(Ledger.Entry.opening(first_account_number + i, row.balance()));
+                    }
+                }
+                userPreparedStatement.executeBatch();
+                accountPreparedStatement.executeBatch();
+                pooled.commit();
+                imported += rows.size();
+            } catch (SQLException e) {
+                pooled.rollback();
+                replay = true;
+            }
+        }
+        if (replay) {
+            // Find the bad rows by inserting the chunk one row at a time.
+            for (int i = 0; i < rows.size(); i++) {
+                insertOne(rows.get(i), first_account_number + i, errorWriter);
+            }
+        }
+    }
+
+    private void insertOne(Row row, long account_number, BufferedWriter errorWriter) throws IOException {
+        try (PooledConnection pooled = pool.borrow()) {
+            pooled.connection().setAutoCommit(false);
+            PreparedStatement userPreparedStatement = pooled.prepare(insert_user_query);
+            bindUser(userPreparedStatement, row);
+            userPreparedStatement.executeUpdate();
+            PreparedStatement accountPreparedStatement = pooled.prepare(insert_account_query);
+            bindAccount(accountPreparedStatement, row, account_number);
+            accountPreparedStatement.executeUpdate();
+            if (row.balance() > 0) {
+                pooled.record(Ledger.Entry.opening(account_number, row.balance()));
+            }
+            pooled.commit();
+            imported++;
+        } catch (SQLException e) {
+            reject(errorWriter, new Rejected(row.line(), row.raw(), e.getMessage()));
+        }
+    }
+
+    private static void bindUser(PreparedStatement preparedStatement, Row row) throws SQLException {
+        preparedStatement.setString(1, row.full_name());
+        preparedStatement.setString(2, row.email());
+        preparedStatement.setString(3, row.password());
+    }
+
+    private static void bindAccount(PreparedStatement preparedStatement, Row row, long account_number) throws SQLException {
+        preparedStatement.setLong(1, account_number);
+        preparedStatement.setString(2, row.full_name());
+        preparedStatement.setString(3, row.email());
+        preparedStatement.setLong(4, row.balance());
+        preparedStatement.setString(5, row.security_pin());
+    }
+
+    private void reject(BufferedWriter errorWriter, Rejected row) throws IOException {
+        rejected++;
+        String reason = row.reason() == null ? "" : row.reason().replace("\"", "\"\"").replace('\n', ' ');
+        errorWriter.write(row.line() + ",\"" + reason + "\"," + row.raw());
+        errorWriter.newLine();
+    }
+}
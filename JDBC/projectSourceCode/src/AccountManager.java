@@ -1,185 +1,697 @@
 
 
 import java.sql.*;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 public class AccountManager {
-    private Connection connection;
-    private Scanner scanner;
-    AccountManager(Connection connection, Scanner scanner){
-        this.connection = connection;
-        this.scanner = scanner;
+    private static final String credit_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ?";
+    private static final String debit_query = "UPDATE Accounts SET balance = balance - ? WHERE account_number = ?";
+    // The pin and balance checks live in the WHERE clause, so a withdrawal is one
+    // round trip and can never overdraw between a check and the write.
+    private static final String pin_credit_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ? AND security_pin = ?";
+    private static final String guarded_debit_query = "UPDATE Accounts SET balance = balance - ? "
+            + "WHERE account_number = ? AND security_pin = ? AND balance >= ?";
+    private static final String balance_query = "SELECT balance FROM Accounts WHERE account_number = ? AND security_pin = ?";
+    // Batch rows carry no pin; the balance check still lives in the WHERE clause.
+    private static final String covered_debit_query = "UPDATE Accounts SET balance = balance - ? "
+            + "WHERE account_number = ? AND balance >= ?";
+    private static final String exists_query = "SELECT account_number FROM Accounts WHERE account_number = ?";
+
+    // Bulk lookups always bind this many parameters so that one cached statement
+    // serves every chunk; unused slots repeat the last account number.
+    private static final int lookup_batch_size = 100;
+    private static final String lookup_query = "SELECT account_number, balance FROM Accounts WHERE account_number IN ("
+            + String.join(", ", Collections.nCopies(lookup_batch_size, "?")) + ") FOR UPDATE";
+
+    private ShardRouter router;
+    private BalanceCache balanceCache;
+    private RetryPolicy retryPolicy;
+    private IdempotencyStore idempotencyStore;
+    private GroupCommitter groupCommitter;
+    private ShardedLedgerEngine ledgerEngine;
+    private TransferCoordinator transferCoordinator;
+    private int batchChunkSize = 500;
+    AccountManager(ShardRouter router, BalanceCache balanceCache, RetryPolicy retryPolicy, IdempotencyStore idempotencyStore){
+        this.router = router;
+        this.balanceCache = balanceCache;
+        this.retryPolicy = retryPolicy;
+        this.idempotencyStore = idempotencyStore;
+    }
+
+
+    public OperationResult credit_money(long account_number, long amount, String security_pin) {
+        return credit_money(account_number, amount, security_pin, null);
     }
 
+    /**
+     * Like {@link #credit_money(long, long, String)}, but a repeated
+     * {@code idempotency_key} returns the first result instead of crediting again;
+     * see {@link IdempotencyStore}. A {@code null} key disables the check.
+     */
+    public OperationResult credit_money(long account_number, long amount, String security_pin, String idempotency_key) {
+        IdempotencyStore.validate(idempotency_key);
+        if (amount <= 0) {
+            return OperationResult.failure(TransactionStatus.INVALID_AMOUNT, "Amount must be positive");
+        }
+        if (account_number == 0) {
+            return OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+        }
+        String fingerprint = IdempotencyStore.fingerprint(account_number, amount);
+        if (ledgerEngine != null) {
+            return inEngine("credit_money", fingerprint, idempotency_key,
+                    () -> ledgerEngine.credit(account_number, amount, security_pin, idempotency_key), "Transaction Failed!");
+        }
+        return apply("credit_money", account_number, fingerprint, idempotency_key,
+                pooled -> credit(pooled, account_number, amount, security_pin),
+                () -> balanceCache.invalidate(account_number), "Transaction Failed!");
+    }
 
-    public void credit_money(long account_number)throws SQLException {
-        scanner.nextLine();
-        System.out.print("Enter Amount: ");
-        double amount = scanner.nextDouble();
-        scanner.nextLine();
-        System.out.print("Enter Security Pin: ");
-        String security_pin = scanner.nextLine();
+    public OperationResult debit_money(long account_number, long amount, String security_pin) {
+        return debit_money(account_number, amount, security_pin, null);
+    }
 
+    /**
+     * Like {@link #debit_money(long, long, String)}, but a repeated
+     * {@code idempotency_key} returns the first result instead of debiting again.
+     */
+    public OperationResult debit_money(long account_number, long amount, String security_pin, String idempotency_key) {
+        IdempotencyStore.validate(idempotency_key);
+        if (amount <= 0) {
+            return OperationResult.failure(TransactionStatus.INVALID_AMOUNT, "Amount must be positive");
+        }
+        if (account_number == 0) {
+            return OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+        }
+        String fingerprint = IdempotencyStore.fingerprint(account_number, amount);
+        if (ledgerEngine != null) {
+            return inEngine("debit_money", fingerprint, idempotency_key,
+                    () -> ledgerEngine.debit(account_number, amount, security_pin, idempotency_key), "Transaction Failed!");
+        }
+        return apply("debit_money", account_number, fingerprint, idempotency_key,
+                pooled -> debit(pooled, account_number, amount, security_pin),
+                () -> balanceCache.invalidate(account_number), "Transaction Failed!");
+    }
+
+    /*
+     * Runs a credit or debit either through the group committer, when one is
+     * set, or in a transaction of its own.
+     */
+    private OperationResult apply(String operation, long account_number, String fingerprint, String idempotency_key,
+                                  GroupCommitter.Work work, Runnable afterCommit, String failure_message) {
         try {
-            connection.setAutoCommit(false);
-            if(account_number != 0) {
-                PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM Accounts WHERE account_number = ? and security_pin = ? ");
-                preparedStatement.setLong(1, account_number);
-                preparedStatement.setString(2, security_pin);
-                ResultSet resultSet = preparedStatement.executeQuery();
-
-                if (resultSet.next()) {
-                    String credit_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ?";
-                    PreparedStatement preparedStatement1 = connection.prepareStatement(credit_query);
-                    preparedStatement1.setDouble(1, amount);
-                    preparedStatement1.setLong(2, account_number);
-                    int rowsAffected = preparedStatement1.executeUpdate();
-                    if (rowsAffected > 0) {
-                        System.out.println("Rs."+amount+" credited Successfully");
-                        connection.commit();
-                        connection.setAutoCommit(true);
-                        return;
-                    } else {
-                        System.out.println("Transaction Failed!");
-                        connection.rollback();
-                        connection.setAutoCommit(true);
+            if (idempotency_key != null) {
+                OperationResult replayed = idempotencyStore.lookup(router.forAccount(account_number).primary(),
+                        operation, fingerprint, idempotency_key);
+                if (replayed != null) {
+                    return replayed;
+                }
+                work = keyed(operation, fingerprint, idempotency_key, work);
+            }
+            OperationResult result;
+            if (groupCommitter != null) {
+                // The committer's threads do the write; keep this caller's reads on the primary.
+                router.forAccount(account_number).markWrite(account_number);
+                result = groupCommitter.submit(operation, work, afterCommit).join();
+            } else {
+                GroupCommitter.Work once = work;
+                result = retryPolicy.run(operation, () -> {
+                    try (PooledConnection pooled = router.forAccount(account_number).borrow(account_number)) {
+                        pooled.connection().setAutoCommit(false);
+                        OperationResult applied = once.apply(pooled);
+                        pooled.commit();
+                        return applied;
                     }
-                }else{
-                    System.out.println("Invalid Security Pin!");
+                });
+                if (result.isSuccess()) {
+                    afterCommit.run();
                 }
             }
+            remember(operation, fingerprint, idempotency_key, result);
+            return result;
+        }catch (SQLException e){
+            return recover(operation, account_number, fingerprint, idempotency_key, e, e, failure_message);
+        }catch (CompletionException e){
+            return recover(operation, account_number, fingerprint, idempotency_key, e.getCause(), e, failure_message);
+        }
+    }
+
+    /*
+     * Runs an operation on the in-memory engine. The engine has no transaction
+     * for the key row to join, so the key is claimed first: a retry arriving
+     * while the operation runs waits for its result instead of applying it
+     * again. The engine writes the key row with the operation's balances, where
+     * it is found again after a restart.
+     */
+    private OperationResult inEngine(String operation, String fingerprint, String idempotency_key,
+                                     Supplier<CompletableFuture<OperationResult>> call, String failure_message) {
+        if (idempotency_key == null) {
+            return inEngine(call, failure_message);
+        }
+        OperationResult earlier = idempotencyStore.claim(operation, fingerprint, idempotency_key);
+        if (earlier != null) {
+            return earlier;
+        }
+        OperationResult result = null;
+        try {
+            result = idempotencyStore.find(operation, fingerprint, idempotency_key);
+            if (result == null) {
+                result = idempotencyStore.load(operation, fingerprint, idempotency_key);
+            }
+            if (result == null) {
+                result = inEngine(call, failure_message);
+                remember(operation, fingerprint, idempotency_key, result);
+            }
+            return result;
         }catch (SQLException e){
             e.printStackTrace();
+            result = OperationResult.failure(TransactionStatus.FAILED, failure_message);
+            return result;
+        } finally {
+            idempotencyStore.release(idempotency_key, result != null ? result
+                    : OperationResult.failure(TransactionStatus.FAILED, failure_message));
         }
-        connection.setAutoCommit(true);
     }
 
-    public void debit_money(long account_number) throws SQLException {
-        scanner.nextLine();
-        System.out.print("Enter Amount: ");
-        double amount = scanner.nextDouble();
-        scanner.nextLine();
-        System.out.print("Enter Security Pin: ");
-        String security_pin = scanner.nextLine();
+    private static OperationResult inEngine(Supplier<CompletableFuture<OperationResult>> call, String failure_message) {
         try {
-            connection.setAutoCommit(false);
-            if(account_number!=0) {
-                PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM Accounts WHERE account_number = ? and security_pin = ? ");
-                preparedStatement.setLong(1, account_number);
-                preparedStatement.setString(2, security_pin);
-                ResultSet resultSet = preparedStatement.executeQuery();
-
-                if (resultSet.next()) {
-                    double current_balance = resultSet.getDouble("balance");
-                    if (amount<=current_balance){
-                        String debit_query = "UPDATE Accounts SET balance = balance - ? WHERE account_number = ?";
-                        PreparedStatement preparedStatement1 = connection.prepareStatement(debit_query);
-                        preparedStatement1.setDouble(1, amount);
-                        preparedStatement1.setLong(2, account_number);
-                        int rowsAffected = preparedStatement1.executeUpdate();
-                        if (rowsAffected > 0) {
-                            System.out.println("Rs."+amount+" debited Successfully");
-                            connection.commit();
-                            connection.setAutoCommit(true);
-                            return;
-                        } else {
-                            System.out.println("Transaction Failed!");
-                            connection.rollback();
-                            connection.setAutoCommit(true);
-                        }
-                    }else{
-                        System.out.println("Insufficient Balance!");
-                    }
-                }else{
-                    System.out.println("Invalid Pin!");
+            return call.get().join();
+        }catch (CompletionException e){
+            e.printStackTrace();
+            return OperationResult.failure(TransactionStatus.FAILED, failure_message);
+        }
+    }
+
+    // Writes the idempotency key in the same transaction as a successful operation.
+    private GroupCommitter.Work keyed(String operation, String fingerprint, String idempotency_key, GroupCommitter.Work work) {
+        return pooled -> {
+            OperationResult result = work.apply(pooled);
+            if (result.isSuccess()) {
+                idempotencyStore.insert(pooled, operation, fingerprint, idempotency_key, result);
+            }
+            return result;
+        };
+    }
+
+    private void remember(String operation, String fingerprint, String idempotency_key, OperationResult result) {
+        if (idempotency_key != null && result.isSuccess()) {
+            idempotencyStore.remember(operation, fingerprint, idempotency_key, result);
+        }
+    }
+
+    /*
+     * A duplicate idempotency key means another attempt already committed this
+     * operation, so its stored result is the answer. The key row is on the shard
+     * of the account the operation changed.
+     */
+    private OperationResult recover(String operation, long account_number, String fingerprint, String idempotency_key,
+                                    Throwable cause, Exception e, String failure_message) {
+        if (idempotency_key != null && cause instanceof SQLException sqlException
+                && IdempotencyStore.isDuplicateKey(sqlException)) {
+            try {
+                OperationResult stored = idempotencyStore.load(router.forAccount(account_number).primary(),
+                        operation, fingerprint, idempotency_key);
+                if (stored != null) {
+                    return stored;
+                }
+            } catch (SQLException loadException) {
+                loadException.printStackTrace();
+            }
+        }
+        e.printStackTrace();
+        return OperationResult.failure(TransactionStatus.FAILED, failure_message);
+    }
+
+    private static OperationResult credit(PooledConnection pooled, long account_number, long amount, String security_pin) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(pin_credit_query);
+        preparedStatement.setLong(1, amount);
+        preparedStatement.setLong(2, account_number);
+        preparedStatement.setString(3, security_pin);
+        int rowsAffected = preparedStatement.executeUpdate();
+        if (rowsAffected > 0) {
+            pooled.record(Ledger.Entry.credit(account_number, amount));
+            return OperationResult.success("Rs."+Money.format(amount)+" credited Successfully");
+        }else{
+            return OperationResult.failure(TransactionStatus.INVALID_PIN, "Invalid Security Pin!");
+        }
+    }
+
+    private static OperationResult debit(PooledConnection pooled, long account_number, long amount, String security_pin) throws SQLException {
+        if (guardedDebit(pooled, account_number, amount, security_pin)) {
+            pooled.record(Ledger.Entry.debit(account_number, amount));
+            return OperationResult.success("Rs."+Money.format(amount)+" debited Successfully");
+        }
+        return debitFailure(pooled, account_number, security_pin, "Invalid Pin!");
+    }
+
+    public OperationResult transfer_money(long sender_account_number, long receiver_account_number, long amount, String security_pin) {
+        return transfer_money(sender_account_number, receiver_account_number, amount, security_pin, null);
+    }
+
+    /**
+     * Like {@link #transfer_money(long, long, long, String)}, but a repeated
+     * {@code idempotency_key} returns the first result instead of transferring again.
+     */
+    public OperationResult transfer_money(long sender_account_number, long receiver_account_number, long amount,
+                                          String security_pin, String idempotency_key) {
+        IdempotencyStore.validate(idempotency_key);
+        if (amount <= 0) {
+            return OperationResult.failure(TransactionStatus.INVALID_AMOUNT, "Amount must be positive");
+        }
+        if (sender_account_number == 0 || receiver_account_number == 0 || sender_account_number == receiver_account_number) {
+            return OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+        }
+        String fingerprint = IdempotencyStore.fingerprint(sender_account_number, receiver_account_number, amount);
+        if (ledgerEngine != null) {
+            return inEngine("transfer_money", fingerprint, idempotency_key, () -> ledgerEngine.transfer(
+                    sender_account_number, receiver_account_number, amount, security_pin, idempotency_key), "Transaction Failed");
+        }
+        try {
+            if (idempotency_key != null) {
+                OperationResult replayed = idempotencyStore.lookup(router.forAccount(sender_account_number).primary(),
+                        "transfer_money", fingerprint, idempotency_key);
+                if (replayed != null) {
+                    return replayed;
                 }
             }
+            OperationResult result;
+            if (router.shardOf(sender_account_number) != router.shardOf(receiver_account_number)) {
+                result = transferAcrossShards(sender_account_number, receiver_account_number, amount, security_pin,
+                        fingerprint, idempotency_key);
+            } else {
+                result = retryPolicy.run("transfer_money", () -> transferOnce(sender_account_number, receiver_account_number,
+                        amount, security_pin, fingerprint, idempotency_key));
+            }
+            remember("transfer_money", fingerprint, idempotency_key, result);
+            return result;
         }catch (SQLException e){
-                e.printStackTrace();
+            return recover("transfer_money", sender_account_number, fingerprint, idempotency_key, e, e, "Transaction Failed");
+        }
+    }
+
+    // Phase one of a cross-shard transfer: the debit and its key row commit on the sender's shard.
+    // The result is PENDING if the coordinator had to leave the credit to its resolver.
+    private OperationResult transferAcrossShards(long sender_account_number, long receiver_account_number, long amount,
+                                                 String security_pin, String fingerprint, String idempotency_key)
+            throws SQLException {
+        OperationResult result = transferCoordinator.transfer(sender_account_number, receiver_account_number, amount,
+                idempotency_key, pooled -> {
+            if (!guardedDebit(pooled, sender_account_number, amount, security_pin)) {
+                return debitFailure(pooled, sender_account_number, security_pin, "Invalid Security Pin!");
+            }
+            pooled.record(Ledger.Entry.transferOut(sender_account_number, receiver_account_number, amount));
+            OperationResult debited = OperationResult.success("Rs."+Money.format(amount)+" Transferred Successfully");
+            if (idempotency_key != null) {
+                idempotencyStore.insert(pooled, "transfer_money", fingerprint, idempotency_key, debited);
             }
-        connection.setAutoCommit(true);
+            return debited;
+        });
+        balanceCache.invalidate(sender_account_number);
+        return result;
     }
 
-    public void transfer_money(long sender_account_number) throws SQLException {
-        scanner.nextLine();
-        System.out.print("Enter Receiver Account Number: ");
-        long receiver_account_number = scanner.nextLong();
-        System.out.print("Enter Amount: ");
-        double amount = scanner.nextDouble();
-        scanner.nextLine();
-        System.out.print("Enter Security Pin: ");
-        String security_pin = scanner.nextLine();
-        try{
+    /*
+     * Each UPDATE takes the row lock of its account, so the two updates run in
+     * ascending account number order: two opposite transfers between the same
+     * pair then queue on the same row instead of deadlocking, without spending
+     * an extra SELECT ... FOR UPDATE round trip per row.
+     */
+    private OperationResult transferOnce(long sender_account_number, long receiver_account_number, long amount,
+                                         String security_pin, String fingerprint, String idempotency_key)
+            throws SQLException {
+        RoutingDataSource dataSource = router.forAccount(sender_account_number);
+        dataSource.markWrite(receiver_account_number);
+        try (PooledConnection pooled = dataSource.borrow(sender_account_number)) {
+            Connection connection = pooled.connection();
             connection.setAutoCommit(false);
-            if(sender_account_number!=0 && receiver_account_number!=0){
-                PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM Accounts WHERE account_number = ? AND security_pin = ? ");
-                preparedStatement.setLong(1, sender_account_number);
-                preparedStatement.setString(2, security_pin);
-                ResultSet resultSet = preparedStatement.executeQuery();
-
-                if (resultSet.next()) {
-                    double current_balance = resultSet.getDouble("balance");
-                    if (amount<=current_balance){
-
-                        // Write debit and credit queries
-                        String debit_query = "UPDATE Accounts SET balance = balance - ? WHERE account_number = ?";
-                        String credit_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ?";
-
-                        // Debit and Credit prepared Statements
-                        PreparedStatement creditPreparedStatement = connection.prepareStatement(credit_query);
-                        PreparedStatement debitPreparedStatement = connection.prepareStatement(debit_query);
-
-                        // Set Values for debit and credit prepared statements
-                        creditPreparedStatement.setDouble(1, amount);
-                        creditPreparedStatement.setLong(2, receiver_account_number);
-                        debitPreparedStatement.setDouble(1, amount);
-                        debitPreparedStatement.setLong(2, sender_account_number);
-                        int rowsAffected1 = debitPreparedStatement.executeUpdate();
-                        int rowsAffected2 = creditPreparedStatement.executeUpdate();
-                        if (rowsAffected1 > 0 && rowsAffected2 > 0) {
-                            System.out.println("Transaction Successful!");
-                            System.out.println("Rs."+amount+" Transferred Successfully");
-                            connection.commit();
-                            connection.setAutoCommit(true);
-                            return;
-                        } else {
-                            System.out.println("Transaction Failed");
-                            connection.rollback();
-                            connection.setAutoCommit(true);
-                        }
-                    }else{
-                        System.out.println("Insufficient Balance!");
+            boolean sender_first = sender_account_number < receiver_account_number;
+            if (!sender_first && !credit(pooled, receiver_account_number, amount)) {
+                pooled.rollback();
+                return OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+            }
+            if (!guardedDebit(pooled, sender_account_number, amount, security_pin)) {
+                pooled.rollback();
+                return debitFailure(pooled, sender_account_number, security_pin, "Invalid Security Pin!");
+            }
+            if (sender_first && !credit(pooled, receiver_account_number, amount)) {
+                pooled.rollback();
+                return OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+            }
+            pooled.record(Ledger.Entry.transferOut(sender_account_number, receiver_account_number, amount));
+            pooled.record(Ledger.Entry.transferIn(receiver_account_number, sender_account_number, amount));
+            OperationResult result = OperationResult.success("Rs."+Money.format(amount)+" Transferred Successfully");
+            if (idempotency_key != null) {
+                idempotencyStore.insert(pooled, "transfer_money", fingerprint, idempotency_key, result);
+            }
+            pooled.commit();
+            balanceCache.invalidate(sender_account_number);
+            balanceCache.invalidate(receiver_account_number);
+            return result;
+        }
+    }
+
+    private static boolean credit(PooledConnection pooled, long account_number, long amount) throws SQLException {
+        PreparedStatement creditPreparedStatement = pooled.prepare(credit_query);
+        creditPreparedStatement.setLong(1, amount);
+        creditPreparedStatement.setLong(2, account_number);
+        return creditPreparedStatement.executeUpdate() > 0;
+    }
+
+    // Takes the money only if the pin matches and the balance covers it.
+    private static boolean guardedDebit(PooledConnection pooled, long account_number, long amount, String security_pin) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(guarded_debit_query);
+        preparedStatement.setLong(1, amount);
+        preparedStatement.setLong(2, account_number);
+        preparedStatement.setString(3, security_pin);
+        preparedStatement.setLong(4, amount);
+        return preparedStatement.executeUpdate() > 0;
+    }
+
+    // Only runs after a guarded debit matched no row, to tell a wrong pin from a short balance.
+    private static OperationResult debitFailure(PooledConnection pooled, long account_number, String security_pin,
+                                                String invalid_pin_message) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(balance_query);
+        preparedStatement.setLong(1, account_number);
+        preparedStatement.setString(2, security_pin);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next()) {
+                return OperationResult.failure(TransactionStatus.INSUFFICIENT_BALANCE, "Insufficient Balance!");
+            }
+        }
+        return OperationResult.failure(TransactionStatus.INVALID_PIN, invalid_pin_message);
+    }
+
+    public OperationResult getBalance(long account_number, String security_pin){
+        if (ledgerEngine != null) {
+            return inEngine(() -> ledgerEngine.balance(account_number, security_pin), "Transaction Failed!");
+        }
+        BalanceCache.Entry cached = balanceCache.get(account_number);
+        if (cached != null && cached.security_pin().equals(security_pin)) {
+            return OperationResult.success(account_number, cached.balance(), "Balance: "+Money.format(cached.balance()));
+        }
+        long stamp = balanceCache.loadStamp(account_number);
+        RoutingDataSource dataSource = router.forAccount(account_number);
+        try (PooledConnection pooled = dataSource.borrowRead(account_number)) {
+            PreparedStatement preparedStatement = pooled.prepare(balance_query);
+            preparedStatement.setLong(1, account_number);
+            preparedStatement.setString(2, security_pin);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()){
+                    long balance = resultSet.getLong("balance");
+                    // A replica may be behind an invalidation the cache has already seen.
+                    if (dataSource.isPrimary(pooled)) {
+                        balanceCache.put(account_number, balance, security_pin, stamp);
                     }
+                    return OperationResult.success(account_number, balance, "Balance: "+Money.format(balance));
                 }else{
-                    System.out.println("Invalid Security Pin!");
+                    return OperationResult.failure(TransactionStatus.INVALID_PIN, "Invalid Pin!");
                 }
-            }else{
-                System.out.println("Invalid account number");
             }
         }catch (SQLException e){
             e.printStackTrace();
+            return OperationResult.failure(TransactionStatus.FAILED, "Transaction Failed!");
         }
-        connection.setAutoCommit(true);
     }
 
-    public void getBalance(long account_number){
-        scanner.nextLine();
-        System.out.print("Enter Security Pin: ");
-        String security_pin = scanner.nextLine();
-        try{
-            PreparedStatement preparedStatement = connection.prepareStatement("SELECT balance FROM Accounts WHERE account_number = ? AND security_pin = ?");
-            preparedStatement.setLong(1, account_number);
-            preparedStatement.setString(2, security_pin);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if(resultSet.next()){
-                double balance = resultSet.getDouble("balance");
-                System.out.println("Balance: "+balance);
-            }else{
-                System.out.println("Invalid Pin!");
+    /**
+     * Sends credits and debits through {@code groupCommitter} so that concurrent
+     * ones share a commit; {@code null} gives every operation its own commit.
+     */
+    public void setGroupCommitter(GroupCommitter groupCommitter) {
+        this.groupCommitter = groupCommitter;
+    }
+
+    /**
+     * Moves credits, debits, transfers and balance checks to {@code ledgerEngine},
+     * which then owns the balances; {@code null} goes back to the database.
+     */
+    public void setLedgerEngine(ShardedLedgerEngine ledgerEngine) {
+        this.ledgerEngine = ledgerEngine;
+    }
+
+    /**
+     * Runs transfers between accounts on different shards through
+     * {@code transferCoordinator}; required when the router has more than one shard.
+     */
+    public void setTransferCoordinator(TransferCoordinator transferCoordinator) {
+        this.transferCoordinator = transferCoordinator;
+    }
+
+    public void setBatchChunkSize(int batchChunkSize) {
+        if (batchChunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.batchChunkSize = batchChunkSize;
+    }
+
+    /**
+     * Applies a file of transfers using JDBC batching. The transfers are committed
+     * in chunks of {@link #setBatchChunkSize batchChunkSize}; each chunk validates
+     * all balances with one locking lookup and then sends the debits and credits
+     * as two batches. A row that fails validation is reported and skipped. A
+     * chunk that deadlocks is retried like a single transfer, and a chunk that
+     * still fails is replayed one transfer at a time, so a bad row never rolls
+     * back the rest of the file and every row gets a result.
+     *
+     * With shards, rows between accounts on different shards go through the
+     * {@link TransferCoordinator} one at a time, and the remaining rows are
+     * chunked per shard, so rows on different shards are not applied in file order.
+     *
+     * @return one result per transfer, in the same order as {@code transfers}
+     */
+    public List<TransferResult> transferBatch(List<Transfer> transfers) {
+        if (ledgerEngine != null) {
+            return transferBatchInEngine(transfers);
+        }
+        if (router.isSharded()) {
+            return transferBatchAcrossShards(transfers);
+        }
+        return transferChunks(router.home(), transfers);
+    }
+
+    private List<TransferResult> transferChunks(RoutingDataSource dataSource, List<Transfer> transfers) {
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        for (int from = 0; from < transfers.size(); from += batchChunkSize) {
+            List<Transfer> chunk = transfers.subList(from, Math.min(from + batchChunkSize, transfers.size()));
+            results.addAll(transferChunk(dataSource, chunk));
+        }
+        return results;
+    }
+
+    private List<TransferResult> transferBatchAcrossShards(List<Transfer> transfers) {
+        TransferResult[] results = new TransferResult[transfers.size()];
+        List<List<Integer>> local = new ArrayList<>();
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            local.add(new ArrayList<>());
+        }
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = transfers.get(i);
+            int shard = router.shardOf(transfer.sender_account_number());
+            if (shard == router.shardOf(transfer.receiver_account_number())) {
+                local.get(shard).add(i);
+            } else {
+                results[i] = transferRowAcrossShards(transfer);
             }
-        }catch (SQLException e){
+        }
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            List<Integer> indexes = local.get(shard);
+            List<Transfer> rows = new ArrayList<>(indexes.size());
+            for (int i : indexes) {
+                rows.add(transfers.get(i));
+            }
+            List<TransferResult> applied = transferChunks(router.shard(shard), rows);
+            for (int j = 0; j < indexes.size(); j++) {
+                results[indexes.get(j)] = applied.get(j);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private TransferResult transferRowAcrossShards(Transfer transfer) {
+        long sender_account_number = transfer.sender_account_number();
+        long receiver_account_number = transfer.receiver_account_number();
+        long amount = transfer.amount();
+        if (amount <= 0) {
+            return new TransferResult(transfer, TransactionStatus.INVALID_AMOUNT, "Amount must be positive");
+        }
+        try {
+            OperationResult result = transferCoordinator.transfer(sender_account_number, receiver_account_number, amount,
+                    null, pooled -> {
+                PreparedStatement preparedStatement = pooled.prepare(covered_debit_query);
+                preparedStatement.setLong(1, amount);
+                preparedStatement.setLong(2, sender_account_number);
+                preparedStatement.setLong(3, amount);
+                if (preparedStatement.executeUpdate() == 0) {
+                    return exists(pooled, sender_account_number)
+                            ? OperationResult.failure(TransactionStatus.INSUFFICIENT_BALANCE, "Insufficient Balance!")
+                            : OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+                }
+                pooled.record(Ledger.Entry.transferOut(sender_account_number, receiver_account_number, amount));
+                return OperationResult.success("Transferred Successfully");
+            });
+            balanceCache.invalidate(sender_account_number);
+            return new TransferResult(transfer, result.status(), result.message());
+        } catch (SQLException e) {
             e.printStackTrace();
+            return new TransferResult(transfer, TransactionStatus.FAILED, e.getMessage());
+        }
+    }
+
+    private static boolean exists(PooledConnection pooled, long account_number) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(exists_query);
+        preparedStatement.setLong(1, account_number);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next();
+        }
+    }
+
+    // The engine has no pin for a batch row, so this skips the pin check like the database path.
+    private List<TransferResult> transferBatchInEngine(List<Transfer> transfers) {
+        List<CompletableFuture<OperationResult>> futures = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            if (transfer.amount() <= 0 || transfer.sender_account_number() == transfer.receiver_account_number()) {
+                futures.add(CompletableFuture.completedFuture(transfer.amount() <= 0
+                        ? OperationResult.failure(TransactionStatus.INVALID_AMOUNT, "Amount must be positive")
+                        : OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number")));
+                continue;
+            }
+            futures.add(ledgerEngine.transfer(transfer.sender_account_number(), transfer.receiver_account_number(),
+                    transfer.amount(), null, null));
+        }
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = transfers.get(i);
+            try {
+                OperationResult result = futures.get(i).join();
+                results.add(new TransferResult(transfer, result.status(), result.message()));
+            } catch (CompletionException e) {
+                results.add(new TransferResult(transfer, TransactionStatus.FAILED, e.getCause().getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /*
+     * Applies one chunk in a single transaction, retried on deadlocks and lock
+     * wait timeouts. If it still fails, every row is replayed on its own: the
+     * rejections were decided against running balances that assumed the
+     * accepted rows commit, so they are revalidated as well.
+     */
+    private List<TransferResult> transferChunk(RoutingDataSource dataSource, List<Transfer> chunk) {
+        try {
+            return Arrays.asList(retryPolicy.run("transfer_batch", () -> applyChunk(dataSource, chunk)));
+        } catch (SQLException e) {
+            if (chunk.size() == 1) {
+                e.printStackTrace();
+                return List.of(new TransferResult(chunk.get(0), TransactionStatus.FAILED, e.getMessage()));
+            }
+        }
+        // Find the bad row by replaying the chunk one transfer at a time.
+        List<TransferResult> results = new ArrayList<>(chunk.size());
+        for (Transfer transfer : chunk) {
+            results.add(transferChunk(dataSource, List.of(transfer)).get(0));
+        }
+        return results;
+    }
+
+    // One attempt; returning the connection to the pool rolls back a failed one.
+    private TransferResult[] applyChunk(RoutingDataSource dataSource, List<Transfer> chunk) throws SQLException {
+        TransferResult[] results = new TransferResult[chunk.size()];
+        List<Integer> accepted = new ArrayList<>();
+        try (PooledConnection pooled = dataSource.borrow()) {
+            pooled.connection().setAutoCommit(false);
+            Map<Long, Long> balances = lockBalances(pooled, chunk);
+
+            PreparedStatement debitPreparedStatement = pooled.prepare(debit_query);
+            PreparedStatement creditPreparedStatement = pooled.prepare(credit_query);
+            for (int i = 0; i < chunk.size(); i++) {
+                Transfer transfer = chunk.get(i);
+                TransferResult rejected = validate(transfer, balances);
+                if (rejected != null) {
+                    results[i] = rejected;
+                    continue;
+                }
+                balances.merge(transfer.sender_account_number(), -transfer.amount(), Long::sum);
+                balances.merge(transfer.receiver_account_number(), transfer.amount(), Long::sum);
+
+                debitPreparedStatement.setLong(1, transfer.amount());
+                debitPreparedStatement.setLong(2, transfer.sender_account_number());
+                debitPreparedStatement.addBatch();
+                creditPreparedStatement.setLong(1, transfer.amount());
+                creditPreparedStatement.setLong(2, transfer.receiver_account_number());
+                creditPreparedStatement.addBatch();
+                pooled.record(Ledger.Entry.transferOut(transfer.sender_account_number(), transfer.receiver_account_number(), transfer.amount()));
+                pooled.record(Ledger.Entry.transferIn(transfer.receiver_account_number(), transfer.sender_account_number(), transfer.amount()));
+                accepted.add(i);
+            }
+
+            if (!accepted.isEmpty()) {
+                int[] debited = debitPreparedStatement.executeBatch();
+                int[] credited = creditPreparedStatement.executeBatch();
+                for (int j = 0; j < accepted.size(); j++) {
+                    if (debited[j] == 0 || credited[j] == 0) {
+                        throw new SQLException("Batch row " + accepted.get(j) + " updated no account");
+                    }
+                }
+            }
+            pooled.commit();
+        }
+        for (int i : accepted) {
+            Transfer transfer = chunk.get(i);
+            balanceCache.invalidate(transfer.sender_account_number());
+            balanceCache.invalidate(transfer.receiver_account_number());
+            dataSource.markWrite(transfer.sender_account_number());
+            dataSource.markWrite(transfer.receiver_account_number());
+            results[i] = new TransferResult(transfer, TransactionStatus.SUCCESS, "Transferred Successfully");
+        }
+        return results;
+    }
+
+    private static TransferResult validate(Transfer transfer, Map<Long, Long> balances) {
+        if (transfer.amount() <= 0) {
+            return new TransferResult(transfer, TransactionStatus.INVALID_AMOUNT, "Amount must be positive");
+        }
+        if (transfer.sender_account_number() == transfer.receiver_account_number()
+                || !balances.containsKey(transfer.sender_account_number())
+                || !balances.containsKey(transfer.receiver_account_number())) {
+            return new TransferResult(transfer, TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+        }
+        if (transfer.amount() > balances.get(transfer.sender_account_number())) {
+            return new TransferResult(transfer, TransactionStatus.INSUFFICIENT_BALANCE, "Insufficient Balance!");
+        }
+        return null;
+    }
+
+    // Locks every account of the chunk in ascending order and returns its balance.
+    private static Map<Long, Long> lockBalances(PooledConnection pooled, List<Transfer> chunk) throws SQLException {
+        TreeSet<Long> account_numbers = new TreeSet<>();
+        for (Transfer transfer : chunk) {
+            account_numbers.add(transfer.sender_account_number());
+            account_numbers.add(transfer.receiver_account_number());
+        }
+        Map<Long, Long> balances = new HashMap<>();
+        List<Long> ordered = new ArrayList<>(account_numbers);
+        PreparedStatement preparedStatement = pooled.prepare(lookup_query);
+        for (int from = 0; from < ordered.size(); from += lookup_batch_size) {
+            List<Long> slice = ordered.subList(from, Math.min(from + lookup_batch_size, ordered.size()));
+            for (int i = 0; i < lookup_batch_size; i++) {
+                preparedStatement.setLong(i + 1, slice.get(Math.min(i, slice.size() - 1)));
+            }
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    balances.put(resultSet.getLong("account_number"), resultSet.getLong("balance"));
+                }
+            }
         }
+        return balances;
     }
 
 }
@@ -0,0 +1,132 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out account numbers from blocks reserved in the {@code account_sequence}
+ * table (hi-lo allocation).
+ *
+ * Reserving a block is one atomic {@code UPDATE ... SET next_value = next_value + ?}
+ * on the sequence row, so several application instances never receive the same
+ * numbers. Inside a block, numbers are handed out with a lock-free
+ * {@code getAndIncrement}; only the thread that exhausts a block goes back to the
+ * database. Numbers of a block that is never used up are skipped after a restart.
+ */
+public class AccountNumberAllocator {
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS account_sequence("
+            + "name VARCHAR(32) PRIMARY KEY, next_value BIGINT NOT NULL)";
+    private static final String reserve_query = "UPDATE account_sequence SET next_value = next_value + ? WHERE name = ?";
+    private static final String next_value_query = "SELECT next_value FROM account_sequence WHERE name = ?";
+    private static final String seed_query = "INSERT INTO account_sequence(name, next_value) VALUES(?, ?)";
+    private static final String last_account_query = "SELECT MAX(account_number) FROM Accounts";
+    private static final String sequence_name = "account_number";
+    private static final long first_account_number = 10000100;
+
+    private final ConnectionPool pool;
+    private final int blockSize;
+    private volatile Block block = new Block(0, 0);
+
+    public AccountNumberAllocator(ConnectionPool pool, int blockSize) throws SQLException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.pool = pool;
+        this.blockSize = blockSize;
+        try (PooledConnection pooled = pool.borrow();
+             Statement statement = pooled.connection().createStatement()) {
+            statement.executeUpdate(create_table_query);
+        }
+    }
+
+    public long nextAccountNumber() throws SQLException {
+        while (true) {
+            Block current = block;
+            long account_number = current.next.getAndIncrement();
+            if (account_number < current.end) {
+                return account_number;
+            }
+            refill(current);
+        }
+    }
+
+    /**
+     * Reserves {@code count} consecutive account numbers at once, for bulk imports.
+     * Returns the first number of the range.
+     */
+    public long reserve(int count) throws SQLException {
+        return reserveRange(count);
+    }
+
+    private synchronized void refill(Block exhausted) throws SQLException {
+        if (block == exhausted) {
+            long start = reserveRange(blockSize);
+            block = new Block(start, start + blockSize);
+        }
+    }
+
+    private long reserveRange(int count) throws SQLException {
+        try (PooledConnection pooled = pool.borrow()) {
+            Connection connection = pooled.connection();
+            connection.setAutoCommit(false);
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    if (!increment(pooled, count)) {
+                        seed(pooled);
+                        if (!increment(pooled, count)) {
+                            throw new SQLException("Could not reserve account numbers");
+                        }
+                    }
+                    long end;
+                    PreparedStatement preparedStatement = pooled.prepare(next_value_query);
+                    preparedStatement.setString(1, sequence_name);
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        resultSet.next();
+                        end = resultSet.getLong(1);
+                    }
+                    connection.commit();
+                    return end - count;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    // Another instance may have seeded the row at the same moment.
+                    if (attempt > 0) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean increment(PooledConnection pooled, int count) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(reserve_query);
+        preparedStatement.setLong(1, count);
+        preparedStatement.setString(2, sequence_name);
+        return preparedStatement.executeUpdate() > 0;
+    }
+
+    // The first reservation starts after the highest account number already in use.
+    private static void seed(PooledConnection pooled) throws SQLException {
+        long next = first_account_number;
+        try (ResultSet resultSet = pooled.prepare(last_account_query).executeQuery()) {
+            if (resultSet.next() && resultSet.getLong(1) != 0) {
+                next = resultSet.getLong(1) + 1;
+            }
+        }
+        PreparedStatement preparedStatement = pooled.prepare(seed_query);
+        preparedStatement.setString(1, sequence_name);
+        preparedStatement.setLong(2, next);
+        preparedStatement.executeUpdate();
+    }
+
+    private static final class Block {
+        final AtomicLong next;
+        final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
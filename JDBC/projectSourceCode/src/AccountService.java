@@ -0,0 +1,121 @@
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Non-interactive entry point to the banking operations.
+ *
+ * Every method takes its inputs as arguments and returns a result object instead
+ * of reading from a {@code Scanner} or printing, so the same code can be driven
+ * by the console in {@link BankingApp}, by a {@link RequestDispatcher} serving
+ * many sessions at once, or by a benchmark. The service holds no per-session
+ * state and is safe to call from many threads.
+ *
+ * Credits, debits and transfers optionally take a client-chosen idempotency
+ * key, so that a client retrying after a timeout cannot move the money twice.
+ *
+ * Each operation is timed into its {@link OperationStats} in {@link Metrics}.
+ * Registering, opening an account and the money operations pass through the
+ * {@link AdmissionController} first; a shed call returns
+ * {@link TransactionStatus#REJECTED} without touching the database. Login is
+ * not gated, since it has no result to carry a rejection.
+ */
+public class AccountService {
+    private final User user;
+    private final Accounts accounts;
+    private final AccountManager accountManager;
+    private final AdmissionController admission;
+    private final OperationStats registerStats;
+    private final OperationStats loginStats;
+    private final OperationStats openAccountStats;
+    private final OperationStats creditStats;
+    private final OperationStats debitStats;
+    private final OperationStats transferStats;
+    private final OperationStats balanceStats;
+
+    public AccountService(User user, Accounts accounts, AccountManager accountManager, AdmissionController admission,
+                          Metrics metrics) {
+        this.user = user;
+        this.accounts = accounts;
+        this.accountManager = accountManager;
+        this.admission = admission;
+        this.registerStats = metrics.get(Metrics.Operation.REGISTER);
+        this.loginStats = metrics.get(Metrics.Operation.LOGIN);
+        this.openAccountStats = metrics.get(Metrics.Operation.OPEN_ACCOUNT);
+        this.creditStats = metrics.get(Metrics.Operation.CREDIT_MONEY);
+        this.debitStats = metrics.get(Metrics.Operation.DEBIT_MONEY);
+        this.transferStats = metrics.get(Metrics.Operation.TRANSFER_MONEY);
+        this.balanceStats = metrics.get(Metrics.Operation.GET_BALANCE);
+    }
+
+    public OperationResult register(String full_name, String email, String password) {
+        return admitted(registerStats, () -> user.register(full_name, email, password));
+    }
+
+    /**
+     * Returns the session on success, {@code null} if the credentials do not match.
+     */
+    public Session login(String email, String password) {
+        long start = loginStats.start();
+        try {
+            return loginStats.finish(start, user.login(email, password));
+        } finally {
+            loginStats.end();
+        }
+    }
+
+    public OperationResult openAccount(String email, String full_name, long balance, String security_pin) {
+        return admitted(openAccountStats, () -> accounts.open_account(email, full_name, balance, security_pin));
+    }
+
+    public OperationResult credit(long account_number, long amount, String security_pin) {
+        return credit(account_number, amount, security_pin, null);
+    }
+
+    public OperationResult credit(long account_number, long amount, String security_pin, String idempotency_key) {
+        return admitted(creditStats, () -> accountManager.credit_money(account_number, amount, security_pin, idempotency_key));
+    }
+
+    public OperationResult debit(long account_number, long amount, String security_pin) {
+        return debit(account_number, amount, security_pin, null);
+    }
+
+    public OperationResult debit(long account_number, long amount, String security_pin, String idempotency_key) {
+        return admitted(debitStats, () -> accountManager.debit_money(account_number, amount, security_pin, idempotency_key));
+    }
+
+    public OperationResult transfer(long sender_account_number, long receiver_account_number, long amount, String security_pin) {
+        return transfer(sender_account_number, receiver_account_number, amount, security_pin, null);
+    }
+
+    public OperationResult transfer(long sender_account_number, long receiver_account_number, long amount, String security_pin, String idempotency_key) {
+        return admitted(transferStats, () -> accountManager.transfer_money(
+                sender_account_number, receiver_account_number, amount, security_pin, idempotency_key));
+    }
+
+    public OperationResult balance(long account_number, String security_pin) {
+        return admitted(balanceStats, () -> accountManager.getBalance(account_number, security_pin));
+    }
+
+    public List<TransferResult> transferBatch(List<Transfer> transfers) {
+        return accountManager.transferBatch(transfers);
+    }
+
+    // Times the call into stats, shed calls included.
+    private OperationResult admitted(OperationStats stats, Supplier<OperationResult> operation) {
+        long start = stats.start();
+        try {
+            if (!admission.tryAcquire()) {
+                return stats.finish(start,
+                        OperationResult.failure(TransactionStatus.REJECTED, "Server busy, please try again"));
+            }
+            long admittedAt = System.nanoTime();
+            try {
+                return stats.finish(start, operation.get());
+            } finally {
+                admission.release(admittedAt);
+            }
+        } finally {
+            stats.end();
+        }
+    }
+}
@@ -1,98 +1,203 @@
 import java.sql.*;
-import java.util.Scanner;
 
 public class Accounts {
-    private Connection connection;
-    private Scanner scanner;
-    public Accounts(Connection connection, Scanner scanner){
-        this.connection = connection;
-        this.scanner = scanner;
+    private static final String claim_query = "INSERT INTO account_directory(email, account_number) VALUES(?, ?)";
+    private static final String release_query = "DELETE FROM account_directory WHERE email = ?";
+    private static final String claimed_query = "SELECT account_number, claimed_at FROM account_directory WHERE email = ?";
+    private static final String orphan_release_query = "DELETE FROM account_directory "
+            + "WHERE email = ? AND account_number = ? AND claimed_at < ?";
+    private static final String exists_query = "SELECT account_number FROM Accounts WHERE account_number = ?";
+    // Far longer than opening an account takes, so a claim this old without its account is orphaned.
+    private static final long orphan_claim_millis = 60_000;
+    private ShardRouter router;
+    private AccountNumberAllocator allocator;
+    // With shards, emails are looked up in the home shard's directory instead of Accounts.
+    private final String lookup_table;
+    private final BloomFilter emailFilter;
+    public Accounts(ShardRouter router, AccountNumberAllocator allocator) throws SQLException {
+        this.router = router;
+        this.allocator = allocator;
+        this.lookup_table = router.isSharded() ? "account_directory" : "Accounts";
+        this.emailFilter = BloomFilter.ofEmails(router.home().primary(), lookup_table);
+    }
 
+    public BloomFilter emailFilter() {
+        return emailFilter;
     }
 
 
 
 
-    public long open_account(String email){
-        if(!account_exist(email)) {
-            String open_account_query = "INSERT INTO Accounts(account_number, full_name, email, balance, security_pin) VALUES(?, ?, ?, ?, ?)";
-            scanner.nextLine();
-            System.out.print("Enter Full Name: ");
-            String full_name = scanner.nextLine();
-            System.out.print("Enter Initial Amount: ");
-            double balance = scanner.nextDouble();
-            scanner.nextLine();
-            System.out.print("Enter Security Pin: ");
-            String security_pin = scanner.nextLine();
-            if(security_pin.length() >4){
-                System.out.println("security should be 4 character long");
-                throw new RuntimeException("Account Creation failed!!");
+    public OperationResult open_account(String email, String full_name, long balance, String security_pin){
+        if(account_exist(email) && !releaseOrphanClaim(email)) {
+            return OperationResult.failure(TransactionStatus.ALREADY_EXISTS, "Account Already Exist");
+        }
+        String open_account_query = "INSERT INTO Accounts(account_number, full_name, email, balance, security_pin) VALUES(?, ?, ?, ?, ?)";
+        if(security_pin.length() >4){
+            return OperationResult.failure(TransactionStatus.INVALID_PIN, "security should be 4 character long");
+        }
+        if(balance < 0){
+            return OperationResult.failure(TransactionStatus.INVALID_AMOUNT, "Initial amount can't be negative");
+        }
+        try {
+            // Allocate before borrowing: a block refill borrows a connection of its own.
+            long account_number = allocator.nextAccountNumber();
+            // Add before inserting, so a committed email is never missing from the filter.
+            emailFilter.add(email);
+            if (router.isSharded() && !claim(email, account_number)
+                    && !(releaseOrphanClaim(email) && claim(email, account_number))) {
+                return OperationResult.failure(TransactionStatus.ALREADY_EXISTS, "Account Already Exist");
             }
-            try {
-                long account_number = generateAccountNumber();
-                PreparedStatement preparedStatement = connection.prepareStatement(open_account_query);
+            boolean created = false;
+            // Reads by email go to the home shard, which may not hold the account.
+            router.home().markWrite(email);
+            try (PooledConnection pooled = router.forAccount(account_number).borrow(account_number)) {
+                pooled.connection().setAutoCommit(false);
+                PreparedStatement preparedStatement = pooled.prepare(open_account_query);
                 preparedStatement.setLong(1, account_number);
                 preparedStatement.setString(2, full_name);
                 preparedStatement.setString(3, email);
-                preparedStatement.setDouble(4, balance);
+                preparedStatement.setLong(4, balance);
                 preparedStatement.setString(5, security_pin);
                 int rowsAffected = preparedStatement.executeUpdate();
                 if (rowsAffected > 0) {
-                    return account_number;
-                } else {
-                    throw new RuntimeException("Account Creation failed!!");
+                    if (balance > 0) {
+                        pooled.record(Ledger.Entry.opening(account_number, balance));
+                    }
+                    pooled.commit();
+                    created = true;
+                    return OperationResult.success(account_number, balance, "Account Created Successfully");
+                }
+            } finally {
+                if (router.isSharded() && !created) {
+                    release(email);
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
-        throw new RuntimeException("Account Already Exist");
-
+        return OperationResult.failure(TransactionStatus.FAILED, "Account Creation failed!!");
     }
 
-    public long getAccount_number(String email) {
-        String query = "SELECT account_number from Accounts WHERE email = ?";
-        try{
-            PreparedStatement preparedStatement = connection.prepareStatement(query);
+    /*
+     * Emails are unique per database, but with shards two accounts for one email
+     * could land on different shards. Claiming the email in the home shard's
+     * directory first keeps it unique across all of them.
+     */
+    private boolean claim(String email, long account_number) throws SQLException {
+        try (PooledConnection pooled = router.home().borrow(email)) {
+            PreparedStatement preparedStatement = pooled.prepare(claim_query);
             preparedStatement.setString(1, email);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if(resultSet.next()){
-                return resultSet.getLong("account_number");
+            preparedStatement.setLong(2, account_number);
+            preparedStatement.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            if (IdempotencyStore.isDuplicateKey(e)) {
+                return false;
             }
-        }catch (SQLException e){
-            e.printStackTrace();
+            throw e;
         }
-        throw new RuntimeException("Account Number Doesn't Exist!");
     }
 
+    /*
+     * A crash between claiming an email and inserting its account, where the
+     * finally block above never runs, leaves a claim with no account that would
+     * block the email for good. A claim older than orphan_claim_millis whose
+     * account is not on its shard is such an orphan: release it. Returns whether
+     * the email is free to claim; without shards a taken email never is.
+     */
+    private boolean releaseOrphanClaim(String email) {
+        if (!router.isSharded()) {
+            return false;
+        }
+        try {
+            long account_number;
+            Timestamp claimed_at;
+            try (PooledConnection pooled = router.home().borrow(email)) {
+                PreparedStatement preparedStatement = pooled.prepare(claimed_query);
+                preparedStatement.setString(1, email);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        return true;
+                    }
+                    account_number = resultSet.getLong("account_number");
+                    claimed_at = resultSet.getTimestamp("claimed_at");
+                }
+            }
+            Timestamp cutoff = new Timestamp(System.currentTimeMillis() - orphan_claim_millis);
+            if (!claimed_at.before(cutoff)) {
+                return false;
+            }
+            try (PooledConnection pooled = router.forAccount(account_number).primary().borrow()) {
+                PreparedStatement preparedStatement = pooled.prepare(exists_query);
+                preparedStatement.setLong(1, account_number);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (resultSet.next()) {
+                        return false;
+                    }
+                }
+            }
+            try (PooledConnection pooled = router.home().borrow(email)) {
+                PreparedStatement preparedStatement = pooled.prepare(orphan_release_query);
+                preparedStatement.setString(1, email);
+                preparedStatement.setLong(2, account_number);
+                preparedStatement.setTimestamp(3, cutoff);
+                if (preparedStatement.executeUpdate() > 0) {
+                    System.err.println("Released orphaned directory claim of " + email + " for account " + account_number);
+                }
+                return true;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
+    private void release(String email) throws SQLException {
+        try (PooledConnection pooled = router.home().borrow(email)) {
+            PreparedStatement preparedStatement = pooled.prepare(release_query);
+            preparedStatement.setString(1, email);
+            preparedStatement.executeUpdate();
+        }
+    }
 
-    private long generateAccountNumber() {
-        try {
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery("SELECT account_number from Accounts ORDER BY account_number DESC LIMIT 1");
-            if (resultSet.next()) {
-                long last_account_number = resultSet.getLong("account_number");
-                return last_account_number+1;
-            } else {
-                return 10000100;
+    public long getAccount_number(String email) {
+        if(!emailFilter.mightContain(email)){
+            throw new RuntimeException("Account Number Doesn't Exist!");
+        }
+        String query = "SELECT account_number from " + lookup_table + " WHERE email = ?";
+        try (PooledConnection pooled = router.home().borrowRead(email)) {
+            PreparedStatement preparedStatement = pooled.prepare(query);
+            preparedStatement.setString(1, email);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()){
+                    return resultSet.getLong("account_number");
+                }
+                emailFilter.recordFalsePositive();
             }
         }catch (SQLException e){
             e.printStackTrace();
         }
-        return 10000100;
+        throw new RuntimeException("Account Number Doesn't Exist!");
     }
 
+
+
     public boolean account_exist(String email){
-        String query = "SELECT account_number from Accounts WHERE email = ?";
-        try{
-            PreparedStatement preparedStatement = connection.prepareStatement(query);
+        if(!emailFilter.mightContain(email)){
+            return false;
+        }
+        String query = "SELECT account_number from " + lookup_table + " WHERE email = ?";
+        try (PooledConnection pooled = router.home().borrowRead(email)) {
+            PreparedStatement preparedStatement = pooled.prepare(query);
             preparedStatement.setString(1, email);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if(resultSet.next()){
-                return true;
-            }else{
-                return false;
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()){
+                    return true;
+                }else{
+                    emailFilter.recordFalsePositive();
+                    return false;
+                }
             }
         }catch (SQLException e){
 
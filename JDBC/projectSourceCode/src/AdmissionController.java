@@ -0,0 +1,203 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds how many operations run at once, so that a slow database sheds load
+ * instead of making every session wait longer and longer.
+ *
+ * The concurrency limit adapts with AIMD on the latency of admitted calls. A
+ * call slower than {@code targetLatencyMillis} multiplies the limit by 0.9, at
+ * most once per target interval, so one slow burst counts once. A fast call
+ * made while the limit was the constraint adds {@code 1/limit}, about one slot
+ * per limit's worth of calls. The limit stays within
+ * {@code [minLimit, maxLimit]}.
+ *
+ * A caller that finds the limit reached waits in a FIFO queue of at most
+ * {@code maxQueue} callers for at most {@code queueTimeoutMillis}. A full queue
+ * rejects at once, and a caller still waiting at its deadline is turned away.
+ *
+ * The slots are the permits of a fair {@link Semaphore}, so waiting callers
+ * queue without holding any lock and their deadline holds however many of them
+ * there are. The lock only guards the limit, and is taken once per release.
+ */
+public class AdmissionController implements AdmissionControllerMBean {
+    private static final double backoff_ratio = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final long targetLatencyNanos;
+
+    private final Slots slots;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock.
+    private double limit;
+    private long lastDecreaseAt;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                               long queueTimeoutMillis, long targetLatencyMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit
+                || maxQueue < 0 || queueTimeoutMillis < 0 || targetLatencyMillis < 1) {
+            throw new IllegalArgumentException("Invalid admission settings: limit=" + initialLimit + " in ["
+                    + minLimit + ", " + maxLimit + "], queue=" + maxQueue + ", queueTimeout=" + queueTimeoutMillis
+                    + ", targetLatency=" + targetLatencyMillis);
+        }
+        this.limit = initialLimit;
+        this.slots = new Slots(initialLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.lastDecreaseAt = System.nanoTime() - targetLatencyNanos;
+    }
+
+    /**
+     * Takes a slot, waiting in the queue if needed. Returns {@code false} if the
+     * call is shed; otherwise the caller must call {@link #release} when done.
+     */
+    public boolean tryAcquire() {
+        try {
+            // The timed form keeps the fair order, so callers already queued go first.
+            if (slots.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return admit();
+            }
+            if (waiting.incrementAndGet() > maxQueue) {
+                waiting.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+            queued.increment();
+            try {
+                if (slots.tryAcquire(queueTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                    return admit();
+                }
+                timedOut.increment();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            return false;
+        }
+    }
+
+    private boolean admit() {
+        inFlight.incrementAndGet();
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * Gives the slot back and feeds the call's latency, measured from
+     * {@code admittedAt}, into the limit.
+     */
+    public void release(long admittedAt) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            int before = (int) limit;
+            boolean limited = inFlight.get() >= before;
+            if (now - admittedAt > targetLatencyNanos) {
+                if (now - lastDecreaseAt >= targetLatencyNanos) {
+                    limit = Math.max(minLimit, limit * backoff_ratio);
+                    lastDecreaseAt = now;
+                    decreases.increment();
+                }
+            } else if (limited) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            // A smaller limit takes slots back as they are released; a larger one adds them.
+            int change = (int) limit - before;
+            inFlight.decrementAndGet();
+            if (change < 0) {
+                slots.reducePermits(-change);
+            }
+            slots.release(1 + Math.max(change, 0));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueueLength() {
+        return waiting.get();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public long getLimitDecreases() {
+        return decreases.sum();
+    }
+
+    public String stats() {
+        return String.format("Admission: limit=%.1f inFlight=%d waiting=%d admitted=%d queued=%d rejected=%d"
+                        + " timedOut=%d decreases=%d",
+                getLimit(), getInFlight(), getQueueLength(), getAdmittedCount(), getQueuedCount(),
+                getRejectedCount(), getTimedOutCount(), getLimitDecreases());
+    }
+
+    /**
+     * A fair semaphore whose permits can be taken back while they are in use.
+     */
+    private static final class Slots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Slots(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
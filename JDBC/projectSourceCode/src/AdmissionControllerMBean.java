@@ -0,0 +1,21 @@
+/**
+ * The JMX view of the {@link AdmissionController}. Rejected and timed-out
+ * counts together are the calls shed under overload.
+ */
+public interface AdmissionControllerMBean {
+    double getLimit();
+
+    int getInFlight();
+
+    int getQueueLength();
+
+    long getAdmittedCount();
+
+    long getQueuedCount();
+
+    long getRejectedCount();
+
+    long getTimedOutCount();
+
+    long getLimitDecreases();
+}
@@ -0,0 +1,169 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-process cache of account balances, keyed by account number.
+ *
+ * {@link AccountManager#getBalance} reads through it. Every committed credit,
+ * debit or transfer invalidates the accounts it touched, and each entry also
+ * expires after {@code ttlMillis} as a safety net against writes made outside
+ * this process.
+ *
+ * A load that raced with a write must not be kept, so every invalidation bumps
+ * a version stamp that {@link #put} checks. The stamps are striped by account
+ * number: a write voids only the loads of accounts in its stripe, not every
+ * load in flight.
+ *
+ * When the cache is full an arbitrary entry is evicted, without regard to how
+ * recently it was used; with {@code maxEntries} well above the working set that
+ * costs little. Each entry keeps the account's security pin, because a cached
+ * balance is only returned to a caller who presents it; the pins therefore sit
+ * in process memory, as they do in the Accounts table, but are never written
+ * out by {@link BalanceSnapshot}.
+ */
+public class BalanceCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private static final int stamp_stripes = 1024;
+
+    // Bumped on every invalidation of an account in the stripe.
+    private final AtomicLongArray invalidations = new AtomicLongArray(stamp_stripes);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public BalanceCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the cached entry, or {@code null} on a miss. The caller still has to
+     * check the security pin against {@link Entry#security_pin()}.
+     */
+    public Entry get(long account_number) {
+        Entry entry = entries.get(account_number);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt() < System.currentTimeMillis()) {
+            if (entries.remove(account_number, entry)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Call before reading {@code account_number}'s balance from the database and
+     * pass the stamp to {@link #put}.
+     */
+    public long loadStamp(long account_number) {
+        return invalidations.get(stripe(account_number));
+    }
+
+    /**
+     * Caches a balance read from the database. Returns {@code false}, keeping
+     * nothing, if a write to an account in the same stripe was invalidated since
+     * {@code stamp} was taken.
+     */
+    public boolean put(long account_number, long balance, String security_pin, long stamp) {
+        int stripe = stripe(account_number);
+        Entry entry = new Entry(balance, security_pin, System.currentTimeMillis() + ttlMillis);
+        if (invalidations.get(stripe) != stamp) {
+            return false;
+        }
+        entries.put(account_number, entry);
+        // A write may have committed while we were storing the entry.
+        if (invalidations.get(stripe) != stamp) {
+            entries.remove(account_number, entry);
+            return false;
+        }
+        evictIfFull();
+        return true;
+    }
+
+    public void invalidate(long account_number) {
+        invalidations.incrementAndGet(stripe(account_number));
+        entries.remove(account_number);
+    }
+
+    private static int stripe(long account_number) {
+        return Long.hashCode(account_number * 0x9E3779B97F4A7C15L) & (stamp_stripes - 1);
+    }
+
+    /**
+     * What {@link #forEachLive} hands out: an entry without its pin, and the time
+     * it was loaded.
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void visit(long account_number, long balance, long loadedAt);
+    }
+
+    /**
+     * Visits every unexpired entry, for {@link BalanceSnapshot}. Entries changed
+     * meanwhile may or may not be seen.
+     */
+    void forEachLive(Visitor visitor) {
+        long now = System.currentTimeMillis();
+        entries.forEach((account_number, entry) -> {
+            if (entry.expiresAt() >= now) {
+                visitor.visit(account_number, entry.balance(), entry.expiresAt() - ttlMillis);
+            }
+        });
+    }
+
+    private void evictIfFull() {
+        Iterator<Long> it = entries.keySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public String stats() {
+        return String.format("Balance cache: size=%d hits=%d misses=%d hitRatio=%.2f evictions=%d expirations=%d",
+                size(), getHits(), getMisses(), getHitRatio(), getEvictions(), getExpirations());
+    }
+
+    public record Entry(long balance, String security_pin, long expiresAt) {
+    }
+}
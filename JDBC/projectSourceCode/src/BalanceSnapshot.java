@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the {@link BalanceCache} warm across restarts.
+ *
+ * Every {@code intervalMillis}, and once more on close, the live cache entries
+ * are written to a file of fixed 24-byte records (account number, balance in
+ * paise, time loaded) behind a 32-byte header with a count and a CRC. The
+ * records are written through a {@link MappedByteBuffer} into a temporary file
+ * that is forced and then moved over the old one, so a crash mid-write leaves
+ * the previous snapshot intact.
+ *
+ * On startup the file is mapped and read back in one pass, which takes a few
+ * milliseconds even for a full cache. Security pins are not written to disk,
+ * and the file may predate writes made while the process was down, so the
+ * records are not served as they are: a background thread looks them up on
+ * their shard's primary in batches of {@code lookup_batch_size}, most recently
+ * loaded first, and puts the database's balance and pin into the cache. That
+ * is a handful of primary-key queries instead of one cold miss per account.
+ * Records whose balance no longer matches are counted as drifted. Only entries
+ * the cache actually kept count as restored; one it refused because its
+ * account was written meanwhile is looked up again, and counted as dropped if
+ * it keeps losing.
+ */
+public final class BalanceSnapshot implements AutoCloseable {
+    private static final int magic = 0x42534e31; // "BSN1"
+    private static final int header_size = 32;
+    private static final int record_size = 8 + 8 + 8;
+    // A stale file should not decide what is worth caching.
+    private static final long max_age_millis = 24 * 60 * 60 * 1000L;
+    private static final int lookup_batch_size = 500;
+    private static final int lookup_attempts = 3;
+    private static final String lookup_query = "SELECT account_number, balance, security_pin FROM Accounts "
+            + "WHERE account_number IN (" + String.join(", ", Collections.nCopies(lookup_batch_size, "?")) + ")";
+
+    private final BalanceCache balanceCache;
+    private final ShardRouter router;
+    private final Path file;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder restored = new LongAdder();
+    private final LongAdder drifted = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile int lastRecords;
+    private volatile long lastWriteMicros;
+
+    /**
+     * Starts warming {@code balanceCache} from {@code file}, if there is one, and
+     * then snapshots it every {@code intervalMillis}.
+     */
+    public BalanceSnapshot(BalanceCache balanceCache, ShardRouter router, Path file, long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        this.balanceCache = balanceCache;
+        this.router = router;
+        this.file = file;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "balance-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] records = read();
+        if (records.length > 0) {
+            scheduler.execute(() -> restore(records));
+        }
+        scheduler.scheduleWithFixedDelay(this::snapshotQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the cache to the snapshot file now.
+     */
+    public synchronized void snapshot() throws IOException {
+        long start = System.nanoTime();
+        // Collect first: the map can change size while it is visited.
+        Records collected = new Records();
+        balanceCache.forEachLive(collected);
+        long[] records = collected.records;
+        int n = collected.count;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, header_size + (long) n * record_size);
+            buffer.position(header_size).asLongBuffer().put(records, 0, n * 3);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(header_size).limit(header_size + n * record_size));
+            buffer.putInt(0, magic);
+            buffer.putInt(4, n);
+            buffer.putLong(8, System.currentTimeMillis());
+            buffer.putLong(16, crc.getValue());
+            buffer.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshots.increment();
+        lastRecords = n;
+        lastWriteMicros = (System.nanoTime() - start) / 1000;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            System.err.println("Balance snapshot failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The records of the snapshot file as account, balance, loaded-at triples,
+     * or none if it is missing, damaged or too old.
+     */
+    private long[] read() {
+        if (!Files.exists(file)) {
+            return new long[0];
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < header_size) {
+                throw new IOException("truncated header");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int n = buffer.getInt(4);
+            if (buffer.getInt(0) != magic || n < 0 || size != header_size + (long) n * record_size) {
+                throw new IOException("not a balance snapshot");
+            }
+            if (System.currentTimeMillis() - buffer.getLong(8) > max_age_millis) {
+                return new long[0];
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(header_size));
+            if (crc.getValue() != buffer.getLong(16)) {
+                throw new IOException("checksum mismatch");
+            }
+            long[] records = new long[n * 3];
+            buffer.position(header_size).asLongBuffer().get(records);
+            return records;
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            System.err.println("Ignoring balance snapshot " + file + ": " + e.getMessage());
+            return new long[0];
+        }
+    }
+
+    // Most recently loaded first: those are the accounts in use right before the restart.
+    private void restore(long[] records) {
+        int n = records.length / 3;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(records[b * 3 + 2], records[a * 3 + 2]));
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            long[] account_numbers = new long[lookup_batch_size];
+            long[] balances = new long[lookup_batch_size];
+            int batched = 0;
+            for (int index : order) {
+                long account_number = records[index * 3];
+                if (router.shardOf(account_number) != shard) {
+                    continue;
+                }
+                account_numbers[batched] = account_number;
+                balances[batched] = records[index * 3 + 1];
+                if (++batched == lookup_batch_size) {
+                    if (!lookup(shard, account_numbers, balances, batched)) {
+                        return;
+                    }
+                    batched = 0;
+                }
+            }
+            if (batched > 0 && !lookup(shard, account_numbers, balances, batched)) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * False if the database could not be reached; the cache then fills on demand
+     * as usual. An entry the cache refuses because its account was written while
+     * the batch was read is looked up again, up to lookup_attempts times.
+     */
+    private boolean lookup(int shard, long[] account_numbers, long[] balances, int count) {
+        Map<Long, Long> snapshotted = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            snapshotted.put(account_numbers[i], balances[i]);
+        }
+        for (int attempt = 1; ; attempt++) {
+            Map<Long, Long> stamps = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                stamps.put(account_numbers[i], balanceCache.loadStamp(account_numbers[i]));
+            }
+            int found = 0;
+            int installed = 0;
+            // Refused accounts are moved to the front of account_numbers for the next attempt.
+            int refused = 0;
+            try (PooledConnection pooled = router.shard(shard).primary().borrow()) {
+                PreparedStatement preparedStatement = pooled.prepare(lookup_query);
+                for (int i = 0; i < lookup_batch_size; i++) {
+                    preparedStatement.setLong(i + 1, account_numbers[Math.min(i, count - 1)]);
+                }
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        long account_number = resultSet.getLong(1);
+                        long balance = resultSet.getLong(2);
+                        found++;
+                        if (!balanceCache.put(account_number, balance, resultSet.getString(3), stamps.get(account_number))) {
+                            account_numbers[refused++] = account_number;
+                            continue;
+                        }
+                        installed++;
+                        if (snapshotted.get(account_number) != balance) {
+                            drifted.increment();
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                failures.increment();
+                System.err.println("Balance snapshot restore stopped: " + e.getMessage());
+                return false;
+            }
+            restored.add(installed);
+            missing.add(count - found);
+            if (refused == 0 || attempt == lookup_attempts) {
+                dropped.add(refused);
+                return true;
+            }
+            count = refused;
+        }
+    }
+
+    // Account, balance, loaded-at triples in one growing array.
+    private static final class Records implements BalanceCache.Visitor {
+        private long[] records = new long[3 * 1024];
+        private int count;
+
+        @Override
+        public void visit(long account_number, long balance, long loadedAt) {
+            if ((count + 1) * 3 > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            records[count * 3] = account_number;
+            records[count * 3 + 1] = balance;
+            records[count * 3 + 2] = loadedAt;
+            count++;
+        }
+    }
+
+    public String stats() {
+        return String.format("Balance snapshot: snapshots=%d records=%d lastWrite=%dus restored=%d drifted=%d missing=%d dropped=%d failures=%d",
+                snapshots.sum(), lastRecords, lastWriteMicros, restored.sum(), drifted.sum(), missing.sum(), dropped.sum(),
+                failures.sum());
+    }
+
+    /**
+     * Stops the schedule and writes a last snapshot.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotQuietly();
+    }
+}
@@ -1,12 +1,26 @@
 
 
+import java.nio.file.Path;
 import java.sql.*;
+import java.util.List;
 import java.util.Scanner;
 
 public class BankingApp {
     private static final String url = "jdbc:mysql://localhost:3306/replace_with_your_db_name";
     private static final String username = "root";
     private static final String password = "password";//replace with your password
+    private static final int poolMaxSize = 10;
+    // Group commit pays off under many concurrent sessions, not for one console user.
+    private static final boolean groupCommitEnabled = false;
+    // Set to a file path such as "ledger-engine.log" to run money operations in memory.
+    private static final String ledgerEngineLog = null;
+    // Read replica URLs for balance checks and lookups, e.g. "jdbc:mysql://replica1:3306/bank".
+    private static final List<String> replicaUrls = List.of();
+    // More databases to spread accounts over; cross-shard transfers are logged in coordinatorLog.
+    private static final List<String> shardUrls = List.of();
+    private static final String coordinatorLog = "transfer-coordinator.log";
+    // Where the balance cache is saved so a restart begins warm; null to start cold.
+    private static final String balanceSnapshot = "balance-cache.snapshot";
 
     public static void main(String[] args) throws ClassNotFoundException, SQLException {
         try{
@@ -14,14 +28,13 @@ public class BankingApp {
         }catch (ClassNotFoundException e){
             System.out.println(e.getMessage());
         }
-        try{
-            Connection connection = DriverManager.getConnection(url, username, password);
+        try (BankingSystem system = new BankingSystem(url, username, password, poolMaxSize, groupCommitEnabled,
+                ledgerEngineLog == null ? null : Path.of(ledgerEngineLog), replicaUrls,
+                shardUrls, Path.of(coordinatorLog), balanceSnapshot == null ? null : Path.of(balanceSnapshot))) {
             Scanner scanner =  new Scanner(System.in);
-            User user = new User(connection, scanner);
-            Accounts accounts = new Accounts(connection, scanner);
-            AccountManager accountManager = new AccountManager(connection, scanner);
+            AccountService service = system.service();
 
-            String email;
+            Session session;
             long account_number;
 
             while(true){
@@ -34,27 +47,31 @@ public class BankingApp {
                 int choice1 = scanner.nextInt();
                 switch (choice1){
                     case 1:
-                        user.register();
+                        register(service, scanner);
                         break;
                     case 2:
-                        email = user.login();
-                        if(email!=null){
+                        session = login(service, scanner);
+                        if(session!=null){
                             System.out.println();
                             System.out.println("User Logged In!");
-                            if(!accounts.account_exist(email)){
+                            if(!session.hasAccount()){
                                 System.out.println();
                                 System.out.println("1. Open a new Bank Account");
                                 System.out.println("2. Exit");
                                 if(scanner.nextInt() == 1) {
-                                    account_number = accounts.open_account(email);
-                                    System.out.println("Account Created Successfully");
-                                    System.out.println("Your Account Number is: " + account_number);
+                                    OperationResult opened = open_account(service, scanner, session.email());
+                                    System.out.println(opened.message());
+                                    if(!opened.isSuccess()){
+                                        break;
+                                    }
+                                    System.out.println("Your Account Number is: " + opened.account_number());
+                                    session = session.withAccount(opened.account_number(), opened.balance());
                                 }else{
                                     break;
                                 }
 
                             }
-                            account_number = accounts.getAccount_number(email);
+                            account_number = session.account_number();
                             int choice2 = 0;
                             while (choice2 != 5) {
                                 System.out.println();
@@ -66,10 +83,10 @@ public class BankingApp {
                                 System.out.println("Enter your choice: ");
                                 choice2 = scanner.nextInt();
                                 switch (choice2) {
-                                    case 1 -> accountManager.debit_money(account_number);
-                                    case 2 -> accountManager.credit_money(account_number);
-                                    case 3 -> accountManager.transfer_money(account_number);
-                                    case 4 -> accountManager.getBalance(account_number);
+                                    case 1 -> debit_money(service, scanner, account_number);
+                                    case 2 -> credit_money(service, scanner, account_number);
+                                    case 3 -> transfer_money(service, scanner, account_number);
+                                    case 4 -> getBalance(service, scanner, account_number);
                                     case 5 -> {
                                     }
                                     default -> System.out.println("Enter Valid Choice!");
@@ -83,6 +100,7 @@ public class BankingApp {
                     case 3:
                         System.out.println("THANK YOU FOR USING BANKING SYSTEM!!!");
                         System.out.println("Exiting System!");
+                        System.out.println(system.stats());
                         return;
                     default:
                         System.out.println("Enter Valid Choice");
@@ -93,4 +111,81 @@ public class BankingApp {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    // The console is one client of AccountService: these helpers only prompt and print.
+
+    private static void register(AccountService service, Scanner scanner) {
+        scanner.nextLine();
+        System.out.print("Full Name: ");
+        String full_name = scanner.nextLine();
+        System.out.print("Email: ");
+        String email = scanner.nextLine();
+        System.out.print("Password: ");
+        String password = scanner.nextLine();
+        System.out.println(service.register(full_name, email, password).message());
+    }
+
+    private static Session login(AccountService service, Scanner scanner) {
+        scanner.nextLine();
+        System.out.print("Email: ");
+        String email = scanner.nextLine();
+        System.out.print("Password: ");
+        String password = scanner.nextLine();
+        return service.login(email, password);
+    }
+
+    private static OperationResult open_account(AccountService service, Scanner scanner, String email) {
+        scanner.nextLine();
+        System.out.print("Enter Full Name: ");
+        String full_name = scanner.nextLine();
+        System.out.print("Enter Initial Amount: ");
+        long balance = Money.parse(scanner.next());
+        scanner.nextLine();
+        System.out.print("Enter Security Pin: ");
+        String security_pin = scanner.nextLine();
+        return service.openAccount(email, full_name, balance, security_pin);
+    }
+
+    private static void credit_money(AccountService service, Scanner scanner, long account_number) {
+        scanner.nextLine();
+        System.out.print("Enter Amount: ");
+        long amount = Money.parse(scanner.next());
+        scanner.nextLine();
+        System.out.print("Enter Security Pin: ");
+        String security_pin = scanner.nextLine();
+        System.out.println(service.credit(account_number, amount, security_pin).message());
+    }
+
+    private static void debit_money(AccountService service, Scanner scanner, long account_number) {
+        scanner.nextLine();
+        System.out.print("Enter Amount: ");
+        long amount = Money.parse(scanner.next());
+        scanner.nextLine();
+        System.out.print("Enter Security Pin: ");
+        String security_pin = scanner.nextLine();
+        System.out.println(service.debit(account_number, amount, security_pin).message());
+    }
+
+    private static void transfer_money(AccountService service, Scanner scanner, long sender_account_number) {
+        scanner.nextLine();
+        System.out.print("Enter Receiver Account Number: ");
+        long receiver_account_number = scanner.nextLong();
+        System.out.print("Enter Amount: ");
+        long amount = Money.parse(scanner.next());
+        scanner.nextLine();
+        System.out.print("Enter Security Pin: ");
+        String security_pin = scanner.nextLine();
+        OperationResult result = service.transfer(sender_account_number, receiver_account_number, amount, security_pin);
+        if (result.isSuccess()) {
+            System.out.println("Transaction Successful!");
+        }
+        System.out.println(result.message());
+    }
+
+    private static void getBalance(AccountService service, Scanner scanner, long account_number) {
+        scanner.nextLine();
+        System.out.print("Enter Security Pin: ");
+        String security_pin = scanner.nextLine();
+        System.out.println(service.balance(account_number, security_pin).message());
+    }
+}
@@ -0,0 +1,267 @@
+import javax.management.JMException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Wires the banking components together on top of one connection pool. The
+ * console in {@link BankingApp} and the {@link LoadGenerator} both build one, so
+ * they exercise exactly the same code.
+ */
+public final class BankingSystem implements AutoCloseable {
+    private static final int poolMinSize = 2;
+    private static final long poolAcquireTimeoutMillis = 5000;
+    private static final long poolIdleTimeoutMillis = 60000;
+    private static final int accountNumberBlockSize = 1000;
+    private static final int balanceCacheSize = 10000;
+    private static final long balanceCacheTtlMillis = 30000;
+    private static final int retryMaxAttempts = 5;
+    private static final long retryBaseDelayMillis = 5;
+    private static final long retryMaxDelayMillis = 200;
+    private static final int idempotencyCacheSize = 100000;
+    private static final long idempotencyWindowMillis = 24 * 60 * 60 * 1000L;
+    private static final long groupCommitWindowMicros = 2000;
+    private static final int groupCommitMaxOps = 64;
+    private static final int groupCommitThreads = 2;
+    private static final int ledgerEngineShards = 4;
+    private static final long replicaMaxLagMillis = 2000;
+    private static final long readYourWritesMillis = 5000;
+    private static final long replicaHeartbeatMillis = 250;
+    private static final int admissionMinLimit = 1;
+    private static final int admissionMaxLimit = 1024;
+    private static final int admissionMaxQueue = 1024;
+    private static final long admissionQueueTimeoutMillis = 500;
+    private static final long admissionTargetLatencyMillis = 50;
+    private static final long balanceSnapshotIntervalMillis = 10000;
+
+    private final ConnectionPool pool;
+    private final RoutingDataSource dataSource;
+    // Shards after the first; the first is pool.
+    private final List<ConnectionPool> shardPools = new ArrayList<>();
+    private final ShardRouter router;
+    private final TransferCoordinator transferCoordinator;
+    private final BalanceCache balanceCache;
+    private final BalanceSnapshot balanceSnapshot;
+    private final RetryPolicy retryPolicy;
+    private final IdempotencyStore idempotencyStore;
+    private final GroupCommitter groupCommitter;
+    private final ShardedLedgerEngine ledgerEngine;
+    private final AccountManager accountManager;
+    private final User user;
+    private final Accounts accounts;
+    private final AccountNumberAllocator allocator;
+    private final AdmissionController admission;
+    private final Metrics metrics;
+    private final AccountService service;
+
+    /**
+     * {@code ledgerEngineLog} turns on the {@link ShardedLedgerEngine} with its
+     * append log at that path; {@code null} keeps every operation on the database.
+     * Balance checks and existence lookups go to {@code replicaUrls} through a
+     * {@link RoutingDataSource}; an empty list keeps them on {@code url}.
+     *
+     * {@code shardUrls} spreads accounts over {@code url} and these databases
+     * (see {@link ShardRouter}); transfers between shards are logged in
+     * {@code coordinatorLog}. Sharding cannot be combined with replicas, group
+     * commit or the ledger engine, which all assume a single database.
+     *
+     * {@code balanceSnapshot} keeps the balance cache warm across restarts (see
+     * {@link BalanceSnapshot}); {@code null} starts with a cold cache. It is not
+     * used with the ledger engine, which keeps every balance in memory anyway.
+     */
+    public BankingSystem(String url, String username, String password, int poolMaxSize, boolean groupCommit,
+                         Path ledgerEngineLog, List<String> replicaUrls,
+                         List<String> shardUrls, Path coordinatorLog, Path balanceSnapshot) throws SQLException {
+        if (!shardUrls.isEmpty() && (groupCommit || ledgerEngineLog != null || !replicaUrls.isEmpty())) {
+            throw new IllegalArgumentException("Shards cannot be combined with replicas, group commit or the ledger engine");
+        }
+        if (!shardUrls.isEmpty() && coordinatorLog == null) {
+            throw new IllegalArgumentException("Shards need a coordinator log");
+        }
+        pool = new ConnectionPool(url, username, password,
+                Math.min(poolMinSize, poolMaxSize), poolMaxSize, poolAcquireTimeoutMillis, poolIdleTimeoutMillis);
+        List<ConnectionPool> replicaPools = new ArrayList<>();
+        // Components that have started threads, to stop newest first if a later step fails.
+        Deque<Runnable> started = new ArrayDeque<>();
+        try {
+            Schema.create(pool);
+            List<RoutingDataSource> shards = new ArrayList<>();
+            for (String shardUrl : shardUrls) {
+                ConnectionPool shardPool = new ConnectionPool(shardUrl, username, password,
+                        Math.min(poolMinSize, poolMaxSize), poolMaxSize, poolAcquireTimeoutMillis, poolIdleTimeoutMillis);
+                shardPools.add(shardPool);
+                Schema.create(shardPool);
+            }
+            // No minimum: a replica that is down at startup only keeps reads on the primary.
+            for (String replicaUrl : replicaUrls) {
+                replicaPools.add(new ConnectionPool(replicaUrl, username, password,
+                        0, poolMaxSize, poolAcquireTimeoutMillis, poolIdleTimeoutMillis));
+            }
+            dataSource = new RoutingDataSource(pool, replicaPools,
+                    replicaMaxLagMillis, readYourWritesMillis, replicaHeartbeatMillis);
+            started.push(dataSource::close);
+            shards.add(dataSource);
+            for (ConnectionPool shardPool : shardPools) {
+                shards.add(new RoutingDataSource(shardPool, List.of(),
+                        replicaMaxLagMillis, readYourWritesMillis, replicaHeartbeatMillis));
+            }
+            router = new ShardRouter(shards);
+            user = new User(router);
+            allocator = new AccountNumberAllocator(pool, accountNumberBlockSize);
+            accounts = new Accounts(router, allocator);
+            balanceCache = new BalanceCache(balanceCacheSize, balanceCacheTtlMillis);
+            retryPolicy = new RetryPolicy(retryMaxAttempts, retryBaseDelayMillis, retryMaxDelayMillis);
+            List<ConnectionPool> allPools = new ArrayList<>();
+            allPools.add(pool);
+            allPools.addAll(shardPools);
+            idempotencyStore = new IdempotencyStore(allPools, idempotencyCacheSize, idempotencyWindowMillis);
+            started.push(idempotencyStore::close);
+            accountManager = new AccountManager(router, balanceCache, retryPolicy, idempotencyStore);
+            if (router.isSharded()) {
+                transferCoordinator = new TransferCoordinator(router, retryPolicy, balanceCache, coordinatorLog);
+                started.push(transferCoordinator::close);
+                accountManager.setTransferCoordinator(transferCoordinator);
+            } else {
+                transferCoordinator = null;
+            }
+            if (groupCommit) {
+                groupCommitter = new GroupCommitter(pool, retryPolicy,
+                        groupCommitWindowMicros, groupCommitMaxOps, groupCommitThreads);
+                started.push(groupCommitter::close);
+                accountManager.setGroupCommitter(groupCommitter);
+            } else {
+                groupCommitter = null;
+            }
+            if (ledgerEngineLog != null) {
+                ledgerEngine = new ShardedLedgerEngine(pool, retryPolicy, idempotencyStore, ledgerEngineLog, ledgerEngineShards);
+                started.push(ledgerEngine::close);
+                accountManager.setLedgerEngine(ledgerEngine);
+            } else {
+                ledgerEngine = null;
+            }
+            this.balanceSnapshot = balanceSnapshot == null || ledgerEngine != null ? null
+                    : new BalanceSnapshot(balanceCache, router, balanceSnapshot, balanceSnapshotIntervalMillis);
+            if (this.balanceSnapshot != null) {
+                started.push(this.balanceSnapshot::close);
+            }
+            // Start at one call per pooled connection and let the latency move it.
+            admission = new AdmissionController(poolMaxSize, admissionMinLimit, Math.max(poolMaxSize, admissionMaxLimit),
+                    admissionMaxQueue, admissionQueueTimeoutMillis, admissionTargetLatencyMillis);
+            metrics = new Metrics();
+            service = new AccountService(user, accounts, accountManager, admission, metrics);
+        } catch (SQLException | RuntimeException e) {
+            for (Runnable stop : started) {
+                try {
+                    stop.run();
+                } catch (RuntimeException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            replicaPools.forEach(ConnectionPool::close);
+            shardPools.forEach(ConnectionPool::close);
+            pool.close();
+            throw e;
+        }
+        try {
+            metrics.registerMBeans();
+            metrics.registerMBean("EmailFilter", "User", user.emailFilter());
+            metrics.registerMBean("EmailFilter", "Accounts", accounts.emailFilter());
+            metrics.registerMBean("Admission", "AccountService", admission);
+        } catch (JMException e) {
+            close();
+            throw new IllegalStateException("Could not register the metrics MBeans", e);
+        }
+    }
+
+    public AccountService service() {
+        return service;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * A bulk importer that shares this system's account numbers and email filters.
+     */
+    public AccountImporter importer(int chunkSize) {
+        if (router.isSharded()) {
+            throw new IllegalStateException("The importer writes to a single database");
+        }
+        return new AccountImporter(pool, allocator, user.emailFilter(), accounts.emailFilter(), chunkSize);
+    }
+
+    /**
+     * The daily interest job over every shard. It writes balances directly, so it
+     * cannot run next to the ledger engine.
+     */
+    public InterestAccrual interestAccrual(int ranges, int workers, int chunkSize) {
+        if (ledgerEngine != null) {
+            throw new IllegalStateException("Interest cannot be posted while the ledger engine owns the balances");
+        }
+        return new InterestAccrual(router, retryPolicy, balanceCache, ranges, workers, chunkSize);
+    }
+
+    /**
+     * Checks balances against the ledger on every shard's primary.
+     */
+    public Reconciler reconciler(int ranges, int workers, int chunkSize, int fetchSize) {
+        return new Reconciler(router, ranges, workers, chunkSize, fetchSize);
+    }
+
+    public ConnectionPool pool() {
+        return pool;
+    }
+
+    public String stats() {
+        StringBuilder stats = new StringBuilder()
+                .append(pool.stats()).append(System.lineSeparator())
+                .append(dataSource.stats()).append(System.lineSeparator())
+                .append(balanceCache.stats()).append(System.lineSeparator())
+                .append(retryPolicy.stats()).append(System.lineSeparator())
+                .append(idempotencyStore.stats()).append(System.lineSeparator())
+                .append(admission.stats());
+        if (balanceSnapshot != null) {
+            stats.append(System.lineSeparator()).append(balanceSnapshot.stats());
+        }
+        if (groupCommitter != null) {
+            stats.append(System.lineSeparator()).append(groupCommitter.stats());
+        }
+        if (ledgerEngine != null) {
+            stats.append(System.lineSeparator()).append(ledgerEngine.stats());
+        }
+        if (transferCoordinator != null) {
+            stats.append(System.lineSeparator()).append(router.stats())
+                    .append(System.lineSeparator()).append(transferCoordinator.stats());
+        }
+        stats.append(System.lineSeparator()).append("User email filter: ").append(user.emailFilter().stats())
+                .append(System.lineSeparator()).append("Accounts email filter: ").append(accounts.emailFilter().stats())
+                .append(System.lineSeparator()).append(metrics.stats());
+        return stats.toString();
+    }
+
+    @Override
+    public void close() {
+        metrics.unregisterMBeans();
+        // Before the pools close: a last snapshot, and no restore still running.
+        if (balanceSnapshot != null) {
+            balanceSnapshot.close();
+        }
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        if (ledgerEngine != null) {
+            ledgerEngine.close();
+        }
+        if (transferCoordinator != null) {
+            transferCoordinator.close();
+        }
+        idempotencyStore.close();
+        dataSource.close();
+        shardPools.forEach(ConnectionPool::close);
+        pool.close();
+    }
+}
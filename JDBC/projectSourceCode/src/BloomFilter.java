@@ -0,0 +1,189 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory Bloom filter of the emails in one table, put in front of the
+ * {@code SELECT ... WHERE email = ?} existence checks.
+ *
+ * {@link #mightContain} never answers "no" for an email that was added, so a
+ * "no" lets the caller skip the query; a "yes" still has to be confirmed by
+ * SQL. Emails are hashed case-insensitively and without trailing spaces,
+ * because that is how MySQL's default collation compares them.
+ *
+ * The filter is loaded by streaming the table at startup and callers add an
+ * email before inserting it, so there is no window in which a committed email
+ * is missing from the filter. It only knows about rows written through this
+ * process; several instances writing the same tables would each need to add
+ * the others' emails. Bits are never cleared, so a deleted email stays a
+ * (harmless) false positive.
+ */
+public class BloomFilter implements BloomFilterMBean {
+    private static final double false_positive_target = 0.01;
+    private static final long minimum_capacity = 1 << 20;
+    private static final int load_fetch_size = 1000;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    private final LongAdder insertions = new LongAdder();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Sizes the filter for {@code capacity} emails at a false-positive rate of
+     * {@code falsePositiveRate}.
+     */
+    public BloomFilter(long capacity, double falsePositiveRate) {
+        if (capacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid Bloom filter size: capacity=" + capacity
+                    + ", falsePositiveRate=" + falsePositiveRate);
+        }
+        double ln2 = Math.log(2);
+        long words = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2) / 64);
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large for " + capacity + " entries");
+        }
+        this.bits = new AtomicLongArray((int) words);
+        this.bitCount = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * ln2));
+    }
+
+    /**
+     * Builds a filter of every {@code email} in {@code table}, sized for twice
+     * the current row count so that it has room to grow.
+     */
+    static BloomFilter ofEmails(ConnectionPool pool, String table) throws SQLException {
+        try (PooledConnection pooled = pool.borrow()) {
+            long rows;
+            try (PreparedStatement count = pooled.connection().prepareStatement("SELECT COUNT(*) FROM " + table);
+                 ResultSet resultSet = count.executeQuery()) {
+                resultSet.next();
+                rows = resultSet.getLong(1);
+            }
+            BloomFilter filter = new BloomFilter(Math.max(minimum_capacity, 2 * rows), false_positive_target);
+            try (PreparedStatement emails = pooled.connection().prepareStatement("SELECT email FROM " + table)) {
+                emails.setFetchSize(load_fetch_size);
+                try (ResultSet resultSet = emails.executeQuery()) {
+                    while (resultSet.next()) {
+                        filter.add(resultSet.getString(1));
+                    }
+                }
+            }
+            return filter;
+        }
+    }
+
+    public void add(String email) {
+        long hash = hash(email);
+        long h1 = mix(hash);
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits.get(word) & mask) == 0) {
+                bits.getAndAccumulate(word, mask, (current, set) -> current | set);
+            }
+        }
+        insertions.increment();
+    }
+
+    /**
+     * Returns {@code false} only if {@code email} was never added.
+     */
+    public boolean mightContain(String email) {
+        checks.increment();
+        long hash = hash(email);
+        long h1 = mix(hash);
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                skipped.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when SQL found no row for an email the filter said might exist.
+     */
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    // FNV-1a over the lower-cased characters, ignoring trailing spaces.
+    private static long hash(String email) {
+        int end = email.length();
+        while (end > 0 && email.charAt(end - 1) == ' ') {
+            end--;
+        }
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < end; i++) {
+            hash ^= Character.toLowerCase(email.charAt(i));
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    // The MurmurHash3 finalizer, to spread FNV's weak low bits.
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    @Override
+    public long getSkippedQueries() {
+        return skipped.sum();
+    }
+
+    @Override
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * The share of absent emails that the filter failed to rule out.
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        long fp = falsePositives.sum();
+        long negatives = fp + skipped.sum();
+        return negatives == 0 ? 0 : (double) fp / negatives;
+    }
+
+    @Override
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    @Override
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    @Override
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public String stats() {
+        return String.format("checks=%d skipped=%d falsePositives=%d fpRate=%.4f",
+                getChecks(), getSkippedQueries(), getFalsePositives(), getFalsePositiveRate());
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * The JMX view of a {@link BloomFilter}.
+ */
+public interface BloomFilterMBean {
+    long getChecks();
+
+    long getSkippedQueries();
+
+    long getFalsePositives();
+
+    double getFalsePositiveRate();
+
+    long getInsertions();
+
+    long getBitCount();
+
+    int getHashCount();
+}
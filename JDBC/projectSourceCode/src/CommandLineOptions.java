@@ -0,0 +1,35 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code --name value} options of the command-line tools.
+ *
+ * Every option takes a value except the {@code switches} a tool names, which
+ * stand alone and map to {@code "true"}. An option missing its value, including
+ * one left at the end of the line, is an error rather than silently dropped.
+ */
+final class CommandLineOptions {
+
+    private CommandLineOptions() {
+    }
+
+    static Map<String, String> parse(String[] args, String... switches) {
+        List<String> switchNames = List.of(switches);
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            if (switchNames.contains(key)) {
+                options.put(key, "true");
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(key, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,194 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit for small money movements.
+ *
+ * Callers submit a unit of work instead of running their own transaction. A
+ * committer thread collects the work that arrives within {@code windowMicros},
+ * or until {@code maxOps} are waiting, applies it one after another on a single
+ * pooled connection and commits once, so the database pays one log flush for
+ * the whole group. Each caller's future completes only after that shared commit.
+ *
+ * If any member fails, or the commit itself fails, the group is rolled back and
+ * every member is re-run in a transaction of its own, so one bad operation
+ * cannot fail its neighbours.
+ */
+public class GroupCommitter implements AutoCloseable {
+
+    /**
+     * The SQL of one operation. It runs inside an open transaction and must not
+     * commit or roll back; ledger entries go through {@link PooledConnection#record}.
+     */
+    @FunctionalInterface
+    public interface Work {
+        OperationResult apply(PooledConnection pooled) throws SQLException;
+    }
+
+    private record Member(String operation, Work work, Runnable afterCommit, CompletableFuture<OperationResult> future) {
+    }
+
+    private final ConnectionPool pool;
+    private final RetryPolicy retryPolicy;
+    private final long windowMicros;
+    private final int maxOps;
+    private final BlockingQueue<Member> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> committers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder grouped = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    public GroupCommitter(ConnectionPool pool, RetryPolicy retryPolicy, long windowMicros, int maxOps, int threads) {
+        // Keep a whole group's ledger entries (at most two per operation) in one batch.
+        if (maxOps < 1 || maxOps > Ledger.flush_batch_size / 2) {
+            throw new IllegalArgumentException("maxOps must be between 1 and " + Ledger.flush_batch_size / 2);
+        }
+        this.pool = pool;
+        this.retryPolicy = retryPolicy;
+        this.windowMicros = windowMicros;
+        this.maxOps = maxOps;
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::commitLoop, "group-committer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            committers.add(thread);
+        }
+    }
+
+    /**
+     * Queues {@code work} for the next group. {@code afterCommit} runs once the
+     * work has been committed successfully, e.g. to invalidate cached balances.
+     */
+    public CompletableFuture<OperationResult> submit(String operation, Work work, Runnable afterCommit) {
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new SQLException("Group committer is closed"));
+            return future;
+        }
+        queue.add(new Member(operation, work, afterCommit, future));
+        return future;
+    }
+
+    private void commitLoop() {
+        List<Member> group = new ArrayList<>(maxOps);
+        while (running || !queue.isEmpty()) {
+            try {
+                Member first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                while (group.size() < maxOps) {
+                    Member next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+                commitGroup(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void commitGroup(List<Member> group) {
+        OperationResult[] results = new OperationResult[group.size()];
+        try (PooledConnection pooled = pool.borrow()) {
+            pooled.connection().setAutoCommit(false);
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    results[i] = group.get(i).work().apply(pooled);
+                }
+                pooled.commit();
+            } catch (SQLException | RuntimeException e) {
+                pooled.rollback();
+                throw e;
+            }
+        } catch (SQLException | RuntimeException e) {
+            fallbacks.increment();
+            for (Member member : group) {
+                runAlone(member);
+            }
+            return;
+        }
+        groups.increment();
+        grouped.add(group.size());
+        for (int i = 0; i < group.size(); i++) {
+            complete(group.get(i), results[i]);
+        }
+    }
+
+    private void runAlone(Member member) {
+        try {
+            OperationResult result = retryPolicy.run(member.operation(), () -> {
+                try (PooledConnection pooled = pool.borrow()) {
+                    pooled.connection().setAutoCommit(false);
+                    OperationResult applied = member.work().apply(pooled);
+                    pooled.commit();
+                    return applied;
+                }
+            });
+            complete(member, result);
+        } catch (SQLException | RuntimeException e) {
+            member.future().completeExceptionally(e);
+        }
+    }
+
+    private static void complete(Member member, OperationResult result) {
+        if (result.isSuccess()) {
+            member.afterCommit().run();
+        }
+        member.future().complete(result);
+    }
+
+    public long getGroups() {
+        return groups.sum();
+    }
+
+    public double getAverageGroupSize() {
+        long count = groups.sum();
+        return count == 0 ? 0 : (double) grouped.sum() / count;
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    public String stats() {
+        return String.format("Group commit: groups=%d avgSize=%.1f fallbacks=%d",
+                getGroups(), getAverageGroupSize(), getFallbacks());
+    }
+
+    /**
+     * Stops taking new work and waits for the queued work to be committed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Thread committer : committers) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Member late;
+        while ((late = queue.poll()) != null) {
+            late.future().completeExceptionally(new SQLException("Group committer is closed"));
+        }
+    }
+}
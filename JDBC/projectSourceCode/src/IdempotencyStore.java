@@ -0,0 +1,335 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the results of money movements by client-supplied idempotency key,
+ * so that a client retrying after a timeout gets the first result back instead
+ * of moving the money twice.
+ *
+ * The key row is inserted into {@code idempotency_keys} in the same transaction
+ * as the balance change (see {@link #insert}), so the database's primary key is
+ * what guarantees that a key is applied at most once, even across a crash or
+ * two racing retries. The loser of a race fails that insert with a duplicate-key
+ * error, rolls back its balance change and returns the stored result.
+ *
+ * Recent results are also kept in a bounded in-memory map that expires after
+ * {@code windowMillis}, so retries within the window, including retry storms,
+ * are answered without touching {@code Accounts}. A key missing from the map is
+ * looked up in the table before the operation runs (see {@link #lookup}). Rows older than the window
+ * are purged in the background. Only successful results are stored: a
+ * declined operation changed nothing and is simply evaluated again.
+ *
+ * Each key is stored with the operation and a {@link #fingerprint} of its
+ * accounts and amount. A key reused for a different request, for example by a
+ * client that recycles keys, is answered with {@link TransactionStatus#CONFLICT}
+ * rather than with the first request's result.
+ *
+ * The {@link ShardedLedgerEngine} has no transaction for the key row to join.
+ * Its callers {@link #claim} the key in this process before running the
+ * operation, so a concurrent retry waits for the first attempt instead of
+ * racing it, and the engine writes the key rows with its write-behind batches
+ * through {@link #insertBatch}.
+ */
+public class IdempotencyStore implements AutoCloseable {
+    static final int max_key_length = 64;
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS idempotency_keys("
+            + "idempotency_key VARCHAR(" + max_key_length + ") PRIMARY KEY, "
+            + "operation VARCHAR(32) NOT NULL, "
+            + "fingerprint VARCHAR(64) NOT NULL, "
+            + "status VARCHAR(32) NOT NULL, "
+            + "account_number BIGINT NOT NULL, "
+            + "balance BIGINT NOT NULL, "
+            + "message VARCHAR(255) NOT NULL, "
+            + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, "
+            + "INDEX idempotency_created (created_at))";
+    private static final String insert_query = "INSERT INTO idempotency_keys"
+            + "(idempotency_key, operation, fingerprint, status, account_number, balance, message) VALUES(?, ?, ?, ?, ?, ?, ?)";
+    // The engine's batches are replayed after a crash; a row already there keeps the first result.
+    private static final String insert_ignore_query = "INSERT IGNORE INTO idempotency_keys"
+            + "(idempotency_key, operation, fingerprint, status, account_number, balance, message) VALUES(?, ?, ?, ?, ?, ?, ?)";
+    private static final String select_query = "SELECT operation, fingerprint, status, account_number, balance, message "
+            + "FROM idempotency_keys WHERE idempotency_key = ?";
+    private static final String purge_query = "DELETE FROM idempotency_keys WHERE created_at < ?";
+
+    private final List<ConnectionPool> pools;
+    private final int maxEntries;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService purger;
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder memoryReplays = new LongAdder();
+    private final LongAdder databaseReplays = new LongAdder();
+    private final LongAdder purged = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder claimWaits = new LongAdder();
+
+    private record Entry(String operation, String fingerprint, OperationResult result, long expiresAt) {
+    }
+
+    // A request running in this process under a key; a retry waits for its result.
+    private record Claim(String operation, String fingerprint, CompletableFuture<OperationResult> result) {
+    }
+
+    /**
+     * A key row for {@link #insertBatch}.
+     */
+    record Row(String idempotency_key, String operation, String fingerprint, OperationResult result) {
+    }
+
+    /**
+     * {@code pools} are the databases whose {@code idempotency_keys} tables are
+     * purged; with shards, a key row lives on the shard of the account it
+     * changed. {@link #load(String, String)} reads from the first.
+     */
+    public IdempotencyStore(List<ConnectionPool> pools, int maxEntries, long windowMillis) {
+        this.pools = List.copyOf(pools);
+        this.maxEntries = maxEntries;
+        this.windowMillis = windowMillis;
+        this.purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "idempotency-key-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, windowMillis / 4);
+        purger.scheduleWithFixedDelay(this::purge, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    static void validate(String idempotency_key) {
+        if (idempotency_key != null && (idempotency_key.isEmpty() || idempotency_key.length() > max_key_length)) {
+            throw new IllegalArgumentException("Idempotency key must be 1 to " + max_key_length + " characters");
+        }
+    }
+
+    /**
+     * What a request is about, e.g. {@code fingerprint(account_number, amount)}:
+     * a retry must repeat it exactly.
+     */
+    static String fingerprint(long... values) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (long value : values) {
+            if (!fingerprint.isEmpty()) {
+                fingerprint.append(':');
+            }
+            fingerprint.append(value);
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Returns the remembered result for {@code idempotency_key}, or {@code null} if
+     * the key has not been seen within the window by this process.
+     */
+    public OperationResult find(String operation, String fingerprint, String idempotency_key) {
+        Entry entry = entries.get(idempotency_key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt() < System.currentTimeMillis()) {
+            entries.remove(idempotency_key, entry);
+            return null;
+        }
+        memoryReplays.increment();
+        return replay(operation, fingerprint, entry);
+    }
+
+    /**
+     * Like {@link #find}, but on a miss reads the key row from {@code pool}, the
+     * database of the account the operation changes. A key evicted from memory or
+     * applied before a restart is still answered with its first result.
+     */
+    public OperationResult lookup(ConnectionPool pool, String operation, String fingerprint, String idempotency_key)
+            throws SQLException {
+        OperationResult result = find(operation, fingerprint, idempotency_key);
+        return result != null ? result : load(pool, operation, fingerprint, idempotency_key);
+    }
+
+    /**
+     * Claims {@code idempotency_key} for a request about to run in this process.
+     * Returns {@code null} if the caller now holds the key; it must then hand its
+     * result to {@link #release} once the result has been remembered. Otherwise
+     * waits for the request that holds the key and returns its result, or a
+     * conflict if that request was a different one.
+     */
+    public OperationResult claim(String operation, String fingerprint, String idempotency_key) {
+        Claim claim = new Claim(operation, fingerprint, new CompletableFuture<>());
+        Claim holder = claims.putIfAbsent(idempotency_key, claim);
+        if (holder == null) {
+            return null;
+        }
+        if (!operation.equals(holder.operation()) || !fingerprint.equals(holder.fingerprint())) {
+            conflicts.increment();
+            return OperationResult.failure(TransactionStatus.CONFLICT,
+                    "Idempotency key was already used for a different request");
+        }
+        claimWaits.increment();
+        return holder.result().join();
+    }
+
+    /**
+     * Gives up a key taken with {@link #claim}, answering the requests that waited for it.
+     */
+    public void release(String idempotency_key, OperationResult result) {
+        Claim claim = claims.remove(idempotency_key);
+        if (claim != null) {
+            claim.result().complete(result);
+        }
+    }
+
+    /**
+     * Writes the key row inside the caller's open transaction. Fails with a
+     * duplicate-key error if the key was already applied.
+     */
+    public void insert(PooledConnection pooled, String operation, String fingerprint, String idempotency_key,
+                       OperationResult result) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(insert_query);
+        preparedStatement.setString(1, idempotency_key);
+        preparedStatement.setString(2, operation);
+        preparedStatement.setString(3, fingerprint);
+        preparedStatement.setString(4, result.status().name());
+        preparedStatement.setLong(5, result.account_number());
+        preparedStatement.setLong(6, result.balance());
+        preparedStatement.setString(7, result.message());
+        preparedStatement.executeUpdate();
+    }
+
+    /**
+     * Writes key rows inside the caller's open transaction, all in one batch.
+     * A key that is already in the table keeps its row.
+     */
+    public void insertBatch(PooledConnection pooled, List<Row> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        PreparedStatement preparedStatement = pooled.prepare(insert_ignore_query);
+        for (Row row : rows) {
+            preparedStatement.setString(1, row.idempotency_key());
+            preparedStatement.setString(2, row.operation());
+            preparedStatement.setString(3, row.fingerprint());
+            preparedStatement.setString(4, row.result().status().name());
+            preparedStatement.setLong(5, row.result().account_number());
+            preparedStatement.setLong(6, row.result().balance());
+            preparedStatement.setString(7, row.result().message());
+            preparedStatement.addBatch();
+        }
+        preparedStatement.executeBatch();
+    }
+
+    /**
+     * Keeps a committed result in memory for retries within the window.
+     */
+    public void remember(String operation, String fingerprint, String idempotency_key, OperationResult result) {
+        stored.increment();
+        entries.put(idempotency_key, new Entry(operation, fingerprint, result, System.currentTimeMillis() + windowMillis));
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reads the stored result after {@link #insert} lost a race or after a restart.
+     * Returns {@code null} if the key is not in the table.
+     */
+    public OperationResult load(String operation, String fingerprint, String idempotency_key) throws SQLException {
+        return load(pools.get(0), operation, fingerprint, idempotency_key);
+    }
+
+    /**
+     * Like {@link #load(String, String, String)}, reading the key row from {@code pool}.
+     */
+    public OperationResult load(ConnectionPool pool, String operation, String fingerprint, String idempotency_key)
+            throws SQLException {
+        try (PooledConnection pooled = pool.borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(select_query);
+            preparedStatement.setString(1, idempotency_key);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                OperationResult result = new OperationResult(TransactionStatus.valueOf(resultSet.getString("status")),
+                        resultSet.getLong("account_number"), resultSet.getLong("balance"), resultSet.getString("message"));
+                Entry entry = new Entry(resultSet.getString("operation"), resultSet.getString("fingerprint"), result,
+                        System.currentTimeMillis() + windowMillis);
+                databaseReplays.increment();
+                entries.put(idempotency_key, entry);
+                return replay(operation, fingerprint, entry);
+            }
+        }
+    }
+
+    // Class 23 is "integrity constraint violation"; here it means the key exists.
+    static boolean isDuplicateKey(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    private OperationResult replay(String operation, String fingerprint, Entry entry) {
+        if (!operation.equals(entry.operation()) || !fingerprint.equals(entry.fingerprint())) {
+            conflicts.increment();
+            return OperationResult.failure(TransactionStatus.CONFLICT,
+                    "Idempotency key was already used for a different request");
+        }
+        return entry.result();
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt() < now);
+        for (ConnectionPool pool : pools) {
+            try (PooledConnection pooled = pool.borrow()) {
+                PreparedStatement preparedStatement = pooled.prepare(purge_query);
+                preparedStatement.setTimestamp(1, new Timestamp(now - windowMillis));
+                purged.add(preparedStatement.executeUpdate());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public long getStored() {
+        return stored.sum();
+    }
+
+    public long getMemoryReplays() {
+        return memoryReplays.sum();
+    }
+
+    public long getDatabaseReplays() {
+        return databaseReplays.sum();
+    }
+
+    public long getPurged() {
+        return purged.sum();
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    public long getClaimWaits() {
+        return claimWaits.sum();
+    }
+
+    public String stats() {
+        return String.format("Idempotency keys: cached=%d stored=%d memoryReplays=%d databaseReplays=%d purged=%d conflicts=%d claimWaits=%d",
+                entries.size(), getStored(), getMemoryReplays(), getDatabaseReplays(), getPurged(), getConflicts(),
+                getClaimWaits());
+    }
+
+    @Override
+    public void close() {
+        purger.shutdownNow();
+    }
+}
@@ -0,0 +1,335 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Posts one day's interest to every account: {@code balance * rate / 365},
+ * rounded down to the paisa, with the annual rate in basis points. Each credit
+ * is an {@link Ledger.EntryType#INTEREST} ledger entry.
+ *
+ * The account numbers of each shard are split into {@code ranges} contiguous
+ * ranges, and the ranges run in parallel on {@code workers} threads, each range
+ * on one pooled connection for its whole run. A range is worked through in
+ * chunks of {@code chunkSize} accounts: the chunk is locked with one
+ * {@code SELECT ... FOR UPDATE}, credited with one batched {@code UPDATE}, and
+ * its checkpoint in {@code interest_checkpoints} is advanced in the same
+ * transaction. A run that crashes or is stopped therefore resumes after the
+ * last committed chunk when it is started again for the same date, and no
+ * account is credited twice for one date: a checkpoint only advances from the
+ * account the run read it at, so if two runs of one date race on a chunk, the
+ * loser's chunk rolls back and its range fails. The ranges are fixed when a date is
+ * first run, so accounts opened past the last range after that are not
+ * credited for that date.
+ *
+ * Live operations keep running meanwhile; each one waits at most for the chunk
+ * that holds its account. Usage:
+ *
+ * <pre>
+ * java -cp out:mysql-connector.jar InterestAccrual --url jdbc:mysql://localhost:3306/bank \
+ *      --user root --password secret --rate-bps 350 [--date 2024-01-31] [--ranges 16] [--workers 4] [--chunk 1000]
+ * </pre>
+ */
+public class InterestAccrual {
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS interest_checkpoints("
+            + "run_date DATE NOT NULL, "
+            + "range_start BIGINT NOT NULL, "
+            + "range_end BIGINT NOT NULL, "
+            + "rate_bps BIGINT NOT NULL, "
+            + "last_account BIGINT NOT NULL, "
+            + "accounts BIGINT NOT NULL, "
+            + "interest BIGINT NOT NULL, "
+            + "done BOOLEAN NOT NULL, "
+            + "PRIMARY KEY(run_date, range_start))";
+    private static final String checkpoints_query = "SELECT range_start, range_end, rate_bps, last_account, done "
+            + "FROM interest_checkpoints WHERE run_date = ? ORDER BY range_start";
+    private static final String insert_checkpoint_query = "INSERT INTO interest_checkpoints"
+            + "(run_date, range_start, range_end, rate_bps, last_account, accounts, interest, done) "
+            + "VALUES(?, ?, ?, ?, ?, 0, 0, FALSE)";
+    // Only from where this run found it: a second run on the same date must not advance it too.
+    private static final String advance_checkpoint_query = "UPDATE interest_checkpoints "
+            + "SET last_account = ?, accounts = accounts + ?, interest = interest + ?, done = ? "
+            + "WHERE run_date = ? AND range_start = ? AND last_account = ? AND done = FALSE";
+    private static final String bounds_query = "SELECT MIN(account_number), MAX(account_number) FROM Accounts";
+    private static final String chunk_query = "SELECT account_number, balance FROM Accounts "
+            + "WHERE account_number > ? AND account_number <= ? ORDER BY account_number LIMIT ? FOR UPDATE";
+    private static final String credit_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ?";
+    private static final int default_ranges = 16;
+    private static final int default_workers = 4;
+    private static final int default_chunk_size = 1000;
+    // Basis points a year, divided over the days of the year.
+    private static final long rate_divisor = 10_000L * 365;
+
+    private record Range(ConnectionPool pool, long range_start, long range_end, long last_account) {
+    }
+
+    // account_numbers holds the first credited entries.
+    private record Chunk(long last_account, boolean done, int accounts, int credited, long interest, long[] account_numbers) {
+    }
+
+    private record Progress(long accounts, long credited, long interest) {
+    }
+
+    public record Report(LocalDate date, int ranges, long accounts, long credited, long interest, long elapsedNanos) {
+
+        public double accountsPerSecond() {
+            return elapsedNanos == 0 ? 0 : accounts / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Interest %s: ranges=%d accounts=%d credited=%d interest=%s elapsed=%.1fs rate=%.0f accounts/s",
+                    date, ranges, accounts, credited, Money.format(interest), elapsedNanos / 1e9, accountsPerSecond());
+        }
+    }
+
+    private final ShardRouter router;
+    private final RetryPolicy retryPolicy;
+    private final BalanceCache balanceCache;
+    private final int ranges;
+    private final int workers;
+    private final int chunkSize;
+
+    public InterestAccrual(ShardRouter router, RetryPolicy retryPolicy, BalanceCache balanceCache,
+                           int ranges, int workers, int chunkSize) {
+        if (ranges < 1 || workers < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Ranges, workers and chunk size must be positive");
+        }
+        this.router = router;
+        this.retryPolicy = retryPolicy;
+        this.balanceCache = balanceCache;
+        this.ranges = ranges;
+        this.workers = workers;
+        this.chunkSize = chunkSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = CommandLineOptions.parse(args);
+        if (!options.containsKey("url") || !options.containsKey("rate-bps")) {
+            throw new IllegalArgumentException("--url and --rate-bps are required");
+        }
+        long rateBps = Long.parseLong(options.get("rate-bps"));
+        LocalDate date = options.containsKey("date") ? LocalDate.parse(options.get("date")) : LocalDate.now();
+        int ranges = Integer.parseInt(options.getOrDefault("ranges", String.valueOf(default_ranges)));
+        int workers = Integer.parseInt(options.getOrDefault("workers", String.valueOf(default_workers)));
+        int chunkSize = Integer.parseInt(options.getOrDefault("chunk", String.valueOf(default_chunk_size)));
+        // One connection per worker, and one to spare for planning.
+        try (BankingSystem system = new BankingSystem(options.get("url"), options.getOrDefault("user", "root"),
+                options.getOrDefault("password", ""), workers + 1, false, null, List.of(), List.of(), null, null)) {
+            System.out.println(system.interestAccrual(ranges, workers, chunkSize).run(date, rateBps));
+        }
+    }
+
+    /**
+     * Posts the interest for {@code date}, or finishes posting it if an earlier
+     * run for that date stopped part way. Only one run should be going at a time.
+     */
+    public synchronized Report run(LocalDate date, long rateBps) throws SQLException {
+        if (rateBps < 0 || rateBps > rate_divisor) {
+            throw new IllegalArgumentException("Invalid interest rate: " + rateBps + " basis points");
+        }
+        long start = System.nanoTime();
+        List<Range> pending = new ArrayList<>();
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            pending.addAll(plan(router.shard(shard).primary(), date, rateBps));
+        }
+        long accounts = 0;
+        long credited = 0;
+        long interest = 0;
+        // Set when a range fails, so the others stop after their current chunk.
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, pending.size())));
+        List<Future<Progress>> futures = new ArrayList<>(pending.size());
+        SQLException failure = null;
+        try {
+            for (Range range : pending) {
+                futures.add(executor.submit(() -> accrue(range, date, rateBps, stop)));
+            }
+            // Wait for every range, even after a failure: stopping a worker by
+            // interrupting it could abandon its connection mid-statement.
+            for (Future<Progress> future : futures) {
+                try {
+                    Progress progress = future.get();
+                    accounts += progress.accounts();
+                    credited += progress.credited();
+                    interest += progress.interest();
+                } catch (ExecutionException e) {
+                    stop.set(true);
+                    if (failure == null) {
+                        failure = e.getCause() instanceof SQLException sqlException
+                                ? sqlException : new SQLException("Interest accrual failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            stop.set(true);
+            Thread.currentThread().interrupt();
+            failure = new SQLException("Interrupted while posting interest", e);
+        } finally {
+            executor.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return new Report(date, pending.size(), accounts, credited, interest, System.nanoTime() - start);
+    }
+
+    /**
+     * The unfinished ranges of {@code date} on one shard, splitting its account
+     * numbers into ranges and storing their checkpoints on the first run.
+     */
+    private List<Range> plan(ConnectionPool pool, LocalDate date, long rateBps) throws SQLException {
+        List<Range> pending = new ArrayList<>();
+        try (PooledConnection pooled = pool.borrow()) {
+            pooled.connection().setAutoCommit(false);
+            boolean planned = false;
+            PreparedStatement checkpointsPreparedStatement = pooled.prepare(checkpoints_query);
+            checkpointsPreparedStatement.setDate(1, Date.valueOf(date));
+            try (ResultSet resultSet = checkpointsPreparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    planned = true;
+                    if (resultSet.getLong("rate_bps") != rateBps) {
+                        throw new IllegalStateException("Interest for " + date + " was started at "
+                                + resultSet.getLong("rate_bps") + " basis points, not " + rateBps);
+                    }
+                    if (!resultSet.getBoolean("done")) {
+                        pending.add(new Range(pool, resultSet.getLong("range_start"),
+                                resultSet.getLong("range_end"), resultSet.getLong("last_account")));
+                    }
+                }
+            }
+            if (planned) {
+                pooled.commit();
+                return pending;
+            }
+            long min;
+            long max;
+            try (ResultSet resultSet = pooled.prepare(bounds_query).executeQuery()) {
+                resultSet.next();
+                min = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    pooled.commit();
+                    return pending;
+                }
+                max = resultSet.getLong(2);
+            }
+            long width = Math.max(1, (max - min) / ranges + 1);
+            PreparedStatement insertPreparedStatement = pooled.prepare(insert_checkpoint_query);
+            for (long range_start = min; range_start <= max; range_start += width) {
+                long range_end = Math.min(max, range_start + width - 1);
+                insertPreparedStatement.setDate(1, Date.valueOf(date));
+                insertPreparedStatement.setLong(2, range_start);
+                insertPreparedStatement.setLong(3, range_end);
+                insertPreparedStatement.setLong(4, rateBps);
+                insertPreparedStatement.setLong(5, range_start - 1);
+                insertPreparedStatement.addBatch();
+                pending.add(new Range(pool, range_start, range_end, range_start - 1));
+            }
+            insertPreparedStatement.executeBatch();
+            pooled.commit();
+        }
+        return pending;
+    }
+
+    private Progress accrue(Range range, LocalDate date, long rateBps, AtomicBoolean stop) throws SQLException {
+        long accounts = 0;
+        long credited = 0;
+        long interest = 0;
+        try (PooledConnection pooled = range.pool().borrow()) {
+            pooled.connection().setAutoCommit(false);
+            long last_account = range.last_account();
+            boolean done = false;
+            while (!done && !stop.get()) {
+                long after = last_account;
+                Chunk chunk = retryPolicy.run("interest_accrual", () -> {
+                    try {
+                        return accrueChunk(pooled, range, after, date, rateBps);
+                    } catch (SQLException e) {
+                        pooled.rollback();
+                        throw e;
+                    }
+                });
+                for (int i = 0; i < chunk.credited(); i++) {
+                    balanceCache.invalidate(chunk.account_numbers()[i]);
+                }
+                last_account = chunk.last_account();
+                done = chunk.done();
+                accounts += chunk.accounts();
+                credited += chunk.credited();
+                interest += chunk.interest();
+            }
+        }
+        return new Progress(accounts, credited, interest);
+    }
+
+    // One transaction: lock the chunk, credit it, advance the checkpoint if it is still where we left it.
+    private Chunk accrueChunk(PooledConnection pooled, Range range, long after, LocalDate date, long rateBps)
+            throws SQLException {
+        PreparedStatement chunkPreparedStatement = pooled.prepare(chunk_query);
+        chunkPreparedStatement.setLong(1, after);
+        chunkPreparedStatement.setLong(2, range.range_end());
+        chunkPreparedStatement.setInt(3, chunkSize);
+        PreparedStatement creditPreparedStatement = pooled.prepare(credit_query);
+        long[] credited_accounts = new long[chunkSize];
+        int accounts = 0;
+        int credited = 0;
+        long interest = 0;
+        long last_account = after;
+        try (ResultSet resultSet = chunkPreparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                long account_number = resultSet.getLong(1);
+                long amount = interestOn(resultSet.getLong(2), rateBps);
+                accounts++;
+                last_account = account_number;
+                if (amount > 0) {
+                    creditPreparedStatement.setLong(1, amount);
+                    creditPreparedStatement.setLong(2, account_number);
+                    creditPreparedStatement.addBatch();
+                    pooled.record(Ledger.Entry.interest(account_number, amount));
+                    credited_accounts[credited++] = account_number;
+                    interest += amount;
+                }
+            }
+        }
+        if (credited > 0) {
+            creditPreparedStatement.executeBatch();
+        }
+        boolean done = accounts < chunkSize;
+        PreparedStatement checkpointPreparedStatement = pooled.prepare(advance_checkpoint_query);
+        checkpointPreparedStatement.setLong(1, last_account);
+        checkpointPreparedStatement.setLong(2, accounts);
+        checkpointPreparedStatement.setLong(3, interest);
+        checkpointPreparedStatement.setBoolean(4, done);
+        checkpointPreparedStatement.setDate(5, Date.valueOf(date));
+        checkpointPreparedStatement.setLong(6, range.range_start());
+        checkpointPreparedStatement.setLong(7, after);
+        if (checkpointPreparedStatement.executeUpdate() == 0) {
+            // Another run credited this chunk first; ours must not commit.
+            pooled.rollback();
+            throw new SQLException("Checkpoint of range " + range.range_start() + " for " + date
+                    + " moved past " + after + "; is another run accruing the same date?");
+        }
+        pooled.commit();
+        return new Chunk(last_account, done, accounts, credited, interest, credited_accounts);
+    }
+
+    /**
+     * One day's interest on {@code balance} paise, rounded down. Split on the
+     * divisor so that {@code balance * rateBps} cannot overflow.
+     */
+    static long interestOn(long balance, long rateBps) {
+        if (balance <= 0) {
+            return 0;
+        }
+        return balance / rate_divisor * rateBps + balance % rate_divisor * rateBps / rate_divisor;
+    }
+}
@@ -0,0 +1,96 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * The append-only history of every balance change.
+ *
+ * Operations do not insert ledger rows themselves. They hand entries to
+ * {@link PooledConnection#record}, which buffers them for the current
+ * transaction; {@link PooledConnection#commit} writes the whole buffer as one
+ * JDBC batch just before the commit. The history is therefore always committed
+ * atomically with the balances it explains, and a transaction that moves many
+ * balances (a transfer chunk, a group commit) costs one batched INSERT rather
+ * than one INSERT per entry.
+ *
+ * Each entry belongs to one account and carries a signed amount in paise, so an
+ * account's balance is the sum of its entries.
+ */
+public class Ledger {
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS Ledger("
+            + "entry_id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+            + "account_number BIGINT NOT NULL, "
+            + "counterparty_account BIGINT, "
+            + "entry_type VARCHAR(16) NOT NULL, "
+            + "amount BIGINT NOT NULL, "
+            + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, "
+            + "INDEX ledger_account (account_number, entry_id))";
+    private static final String insert_query = "INSERT INTO Ledger(account_number, counterparty_account, entry_type, amount) "
+            + "VALUES(?, ?, ?, ?)";
+
+    // A very large transaction writes its entries in batches of this size.
+    static final int flush_batch_size = 1000;
+
+    public enum EntryType {
+        OPENING,
+        CREDIT,
+        DEBIT,
+        TRANSFER_IN,
+        TRANSFER_OUT,
+        // Gives back a cross-shard transfer whose receiver could not be credited.
+        TRANSFER_REFUND,
+        // Daily interest posted by InterestAccrual.
+        INTEREST
+    }
+
+    /**
+     * {@code counterparty_account} is 0 when the entry has no counterparty.
+     */
+    public record Entry(long account_number, long counterparty_account, EntryType type, long amount) {
+
+        public static Entry credit(long account_number, long amount) {
+            return new Entry(account_number, 0, EntryType.CREDIT, amount);
+        }
+
+        public static Entry debit(long account_number, long amount) {
+            return new Entry(account_number, 0, EntryType.DEBIT, -amount);
+        }
+
+        public static Entry opening(long account_number, long amount) {
+            return new Entry(account_number, 0, EntryType.OPENING, amount);
+        }
+
+        public static Entry transferOut(long sender_account_number, long receiver_account_number, long amount) {
+            return new Entry(sender_account_number, receiver_account_number, EntryType.TRANSFER_OUT, -amount);
+        }
+
+        public static Entry transferIn(long receiver_account_number, long sender_account_number, long amount) {
+            return new Entry(receiver_account_number, sender_account_number, EntryType.TRANSFER_IN, amount);
+        }
+
+        public static Entry transferRefund(long sender_account_number, long receiver_account_number, long amount) {
+            return new Entry(sender_account_number, receiver_account_number, EntryType.TRANSFER_REFUND, amount);
+        }
+
+        public static Entry interest(long account_number, long amount) {
+            return new Entry(account_number, 0, EntryType.INTEREST, amount);
+        }
+    }
+
+    static void write(PooledConnection pooled, List<Entry> entries) throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(insert_query);
+        for (Entry entry : entries) {
+            preparedStatement.setLong(1, entry.account_number());
+            if (entry.counterparty_account() == 0) {
+                preparedStatement.setNull(2, Types.BIGINT);
+            } else {
+                preparedStatement.setLong(2, entry.counterparty_account());
+            }
+            preparedStatement.setString(3, entry.type().name());
+            preparedStatement.setLong(4, entry.amount());
+            preparedStatement.addBatch();
+        }
+        preparedStatement.executeBatch();
+    }
+}
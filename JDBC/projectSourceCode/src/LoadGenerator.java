@@ -0,0 +1,246 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Load generator and benchmark harness for the banking flows.
+ *
+ * It drives {@link AccountService} (registration, login, account opening and
+ * the {@link AccountManager} money operations) from many concurrent sessions
+ * with a configurable operation mix, then prints throughput and p50/p99/p99.9
+ * latency per operation. By default it runs against an in-process H2 database
+ * in MySQL mode created with {@link Schema}, so no MySQL server is needed; put
+ * the H2 jar on the classpath. Sessions run on virtual threads through a
+ * {@link RequestDispatcher}, so JDK 21 or later is required:
+ *
+ * <pre>
+ * java -cp out:h2.jar LoadGenerator --threads 64 --duration 30 \
+ *      --mix credit=30,debit=25,transfer=20,balance=20,login=4,signup=1
+ * </pre>
+ *
+ * Options: {@code --url --user --password --threads --duration (seconds)
+ * --warmup (seconds) --accounts --pool --mix --group-commit --engine <log file>
+ * --replicas <url,url,...> --shards <url,url,...> --coordinator-log <log file>
+ * --balance-snapshot <file>}.
+ *
+ * To see write throughput scale with shards, run a write-only mix against one
+ * and then several databases, e.g. {@code --mix credit=50,debit=50 --shards
+ * jdbc:h2:mem:bank2;...,jdbc:h2:mem:bank3;...}.
+ */
+public class LoadGenerator {
+    private static final String default_url =
+            "jdbc:h2:mem:bank;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+    private static final String security_pin = "1234";
+    private static final String password = "secret";
+    private static final long opening_balance = Money.ofRupees(1_000_000);
+
+    enum Operation {
+        SIGNUP, LOGIN, CREDIT, DEBIT, TRANSFER, BALANCE
+    }
+
+    // Latency is recorded under the service call that was timed.
+    enum Metric {
+        REGISTER, OPEN_ACCOUNT, LOGIN, CREDIT_MONEY, DEBIT_MONEY, TRANSFER_MONEY, GET_BALANCE
+    }
+
+    private final AccountService service;
+    private final Map<Operation, Integer> mix;
+    private final int mixTotal;
+    private final List<long[]> accounts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextUser = new AtomicInteger();
+    private final Map<Metric, LatencyHistogram> latencies = new EnumMap<>(Metric.class);
+    private final Map<Metric, LongAdder> failures = new EnumMap<>(Metric.class);
+    private volatile boolean recording;
+
+    LoadGenerator(AccountService service, Map<Operation, Integer> mix) {
+        this.service = service;
+        this.mix = mix;
+        this.mixTotal = mix.values().stream().mapToInt(Integer::intValue).sum();
+        for (Metric metric : Metric.values()) {
+            latencies.put(metric, new LatencyHistogram());
+            failures.put(metric, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = CommandLineOptions.parse(args, "group-commit");
+        String url = options.getOrDefault("url", default_url);
+        int threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int accountCount = Integer.parseInt(options.getOrDefault("accounts", "1000"));
+        if (accountCount < 2) {
+            throw new IllegalArgumentException("At least two accounts are needed for transfers");
+        }
+        int poolSize = Integer.parseInt(options.getOrDefault("pool", "16"));
+        boolean groupCommit = options.containsKey("group-commit");
+        Path engineLog = options.containsKey("engine") ? Path.of(options.get("engine")) : null;
+        List<String> replicaUrls = options.containsKey("replicas")
+                ? List.of(options.get("replicas").split(",")) : List.of();
+        List<String> shardUrls = options.containsKey("shards")
+                ? List.of(options.get("shards").split(",")) : List.of();
+        Path coordinatorLog = Path.of(options.getOrDefault("coordinator-log", "transfer-coordinator.log"));
+        Path balanceSnapshot = options.containsKey("balance-snapshot") ? Path.of(options.get("balance-snapshot")) : null;
+        Map<Operation, Integer> mix = parseMix(options.getOrDefault("mix",
+                "credit=30,debit=25,transfer=20,balance=20,login=4,signup=1"));
+
+        try (BankingSystem system = new BankingSystem(url, options.getOrDefault("user", "sa"),
+                options.getOrDefault("password", ""), poolSize, groupCommit, engineLog, replicaUrls,
+                shardUrls, coordinatorLog, balanceSnapshot)) {
+            LoadGenerator generator = new LoadGenerator(system.service(), mix);
+            System.out.println("Seeding " + accountCount + " accounts...");
+            generator.seed(accountCount);
+            System.out.println("Warming up for " + warmup + "s...");
+            generator.run(threads, warmup);
+            generator.recording = true;
+            System.out.println("Running " + threads + " sessions for " + duration + "s, mix " + mix);
+            long elapsed = generator.run(threads, duration);
+            generator.report(elapsed);
+            System.out.println(system.stats());
+        }
+    }
+
+    void seed(int count) {
+        for (int i = 0; i < count; i++) {
+            signup();
+        }
+    }
+
+    /**
+     * Runs the mix from {@code threads} sessions for {@code seconds} and returns
+     * the elapsed nanoseconds. Each session is one request to a
+     * {@link RequestDispatcher}, and so gets its own virtual thread.
+     */
+    long run(int threads, int seconds) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<CompletableFuture<Void>> sessions = new ArrayList<>();
+        try (RequestDispatcher dispatcher = new RequestDispatcher(service)) {
+            for (int i = 0; i < threads; i++) {
+                sessions.add(dispatcher.submit(s -> {
+                    while (System.nanoTime() < deadline) {
+                        runOne(s, pick());
+                    }
+                    return null;
+                }));
+            }
+        }
+        // A session that threw would otherwise end the run without a word.
+        CompletableFuture.allOf(sessions.toArray(new CompletableFuture<?>[0])).join();
+        return System.nanoTime() - start;
+    }
+
+    private Operation pick() {
+        int roll = ThreadLocalRandom.current().nextInt(mixTotal);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty mix");
+    }
+
+    private void runOne(AccountService service, Operation operation) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] account = randomAccount(random);
+        long amount = Money.ofRupees(1 + random.nextInt(100));
+        switch (operation) {
+            case SIGNUP -> signup();
+            case LOGIN -> {
+                long start = System.nanoTime();
+                Session session = service.login(email(account[1]), password);
+                record(Metric.LOGIN, start, session != null);
+            }
+            case CREDIT -> timed(Metric.CREDIT_MONEY, () -> service.credit(account[0], amount, security_pin));
+            case DEBIT -> timed(Metric.DEBIT_MONEY, () -> service.debit(account[0], amount, security_pin));
+            case TRANSFER -> {
+                long[] receiver = randomAccount(random);
+                if (receiver[0] != account[0]) {
+                    timed(Metric.TRANSFER_MONEY, () -> service.transfer(account[0], receiver[0], amount, security_pin));
+                }
+            }
+            case BALANCE -> timed(Metric.GET_BALANCE, () -> service.balance(account[0], security_pin));
+        }
+    }
+
+    private void signup() {
+        int user = nextUser.getAndIncrement();
+        String email = email(user);
+        OperationResult registered = timed(Metric.REGISTER, () -> service.register("User " + user, email, password));
+        if (!registered.isSuccess()) {
+            return;
+        }
+        OperationResult opened = timed(Metric.OPEN_ACCOUNT,
+                () -> service.openAccount(email, "User " + user, opening_balance, security_pin));
+        if (opened.isSuccess()) {
+            accounts.add(new long[]{opened.account_number(), user});
+        }
+    }
+
+    private long[] randomAccount(ThreadLocalRandom random) {
+        return accounts.get(random.nextInt(accounts.size()));
+    }
+
+    private OperationResult timed(Metric metric, Supplier<OperationResult> call) {
+        long start = System.nanoTime();
+        OperationResult result = call.get();
+        record(metric, start, result.status() != TransactionStatus.FAILED);
+        return result;
+    }
+
+    private void record(Metric metric, long start, boolean ok) {
+        if (!recording) {
+            return;
+        }
+        latencies.get(metric).record(System.nanoTime() - start);
+        if (!ok) {
+            failures.get(metric).increment();
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-15s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "p50(ms)", "p99(ms)", "p999(ms)", "failed");
+        long total = 0;
+        for (Metric metric : Metric.values()) {
+            LatencyHistogram histogram = latencies.get(metric);
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            total += count;
+            System.out.printf("%-15s %10d %10.1f %10.3f %10.3f %10.3f %10d%n",
+                    metric.name().toLowerCase(), count, count / seconds,
+                    histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                    histogram.percentile(99.9) / 1e6, failures.get(metric).sum());
+        }
+        System.out.printf("%-15s %10d %10.1f%n", "total", total, total / seconds);
+    }
+
+    private static String email(long user) {
+        return "user" + user + "@load.test";
+    }
+
+    private static Map<Operation, Integer> parseMix(String spec) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String part : spec.split(",")) {
+            String[] pair = part.split("=");
+            mix.put(Operation.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("The mix needs at least one positive weight");
+        }
+        return mix;
+    }
+}
@@ -0,0 +1,109 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-operation metrics for the banking operations, published as JMX MBeans
+ * under {@code banking:type=Operation,name=<operation>} so they can be watched
+ * with jconsole or any JMX agent while the system runs.
+ *
+ * Recording is allocation-free: the stats objects are created up front and a
+ * call only bumps counters and one histogram bucket. The exception is a thread's
+ * first call, which creates its entry in {@link #current}; on a
+ * {@link RequestDispatcher}, whose every request is a new virtual thread, that
+ * is one small allocation next to the thread itself.
+ */
+public class Metrics {
+    public enum Operation {
+        CREDIT_MONEY("credit_money"),
+        DEBIT_MONEY("debit_money"),
+        TRANSFER_MONEY("transfer_money"),
+        GET_BALANCE("getBalance"),
+        OPEN_ACCOUNT("open_account"),
+        REGISTER("register"),
+        LOGIN("login");
+
+        private final String operationName;
+
+        Operation(String operationName) {
+            this.operationName = operationName;
+        }
+
+        public String operationName() {
+            return operationName;
+        }
+    }
+
+    // The operation running on the current thread, for SQL time attribution.
+    static final ThreadLocal<OperationStats> current = new ThreadLocal<>();
+
+    private final Map<Operation, OperationStats> operations = new EnumMap<>(Operation.class);
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public Metrics() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationStats(operation.operationName()));
+        }
+    }
+
+    public OperationStats get(Operation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * Adds {@code nanos} of connection time to the operation running on the
+     * current thread, if any.
+     */
+    static void recordSqlTime(long nanos) {
+        OperationStats stats = current.get();
+        if (stats != null) {
+            stats.addSqlTime(nanos);
+        }
+    }
+
+    public synchronized void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (OperationStats stats : operations.values()) {
+            ObjectName name = new ObjectName("banking:type=Operation,name=" + stats.name());
+            server.registerMBean(stats, name);
+            registered.add(name);
+        }
+    }
+
+    /**
+     * Registers another component's MBean as {@code banking:type=<type>,name=<name>};
+     * it is unregistered with the operation MBeans.
+     */
+    public synchronized void registerMBean(String type, String name, Object mbean) throws JMException {
+        ObjectName objectName = new ObjectName("banking:type=" + type + ",name=" + name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+        registered.add(objectName);
+    }
+
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        registered.clear();
+    }
+
+    public String stats() {
+        StringBuilder stats = new StringBuilder("Operations:");
+        for (OperationStats operation : operations.values()) {
+            if (operation.getCount() > 0) {
+                stats.append(System.lineSeparator()).append("  ").append(operation.stats());
+            }
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Money is carried as a {@code long} count of paise everywhere: in memory, in
+ * SQL ({@code BIGINT}) and in the ledger engine's log. Sums and comparisons are
+ * exact integer arithmetic; only input and display go through this class.
+ *
+ * Parsing works on the characters directly, so reading an amount allocates
+ * nothing beyond the caller's string.
+ */
+public final class Money {
+    public static final long paise_per_rupee = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Parses a rupee amount such as {@code 1500}, {@code 1500.5} or
+     * {@code -12.05} into paise. At most two fraction digits are accepted; no
+     * exponents, grouping separators or currency symbols.
+     *
+     * @throws NumberFormatException if the text is not such an amount or does
+     *         not fit in a {@code long}
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i++;
+        }
+        long rupees = 0;
+        int digits = 0;
+        for (; i < length && text.charAt(i) != '.'; i++, digits++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalid(text);
+            }
+            if (rupees > (Long.MAX_VALUE / paise_per_rupee - 1 - digit) / 10) {
+                throw new NumberFormatException("Amount out of range: " + text);
+            }
+            rupees = rupees * 10 + digit;
+        }
+        long paise = 0;
+        int fraction = 0;
+        if (i < length) {
+            for (i++; i < length; i++, fraction++) {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || fraction == 2) {
+                    throw invalid(text);
+                }
+                paise = paise * 10 + digit;
+            }
+        }
+        if (digits == 0 && fraction == 0) {
+            throw invalid(text);
+        }
+        if (fraction == 1) {
+            paise *= 10;
+        }
+        long amount = rupees * paise_per_rupee + paise;
+        return negative ? -amount : amount;
+    }
+
+    /**
+     * Whole rupees to paise, for constants and tools that deal in rupees.
+     */
+    public static long ofRupees(long rupees) {
+        return Math.multiplyExact(rupees, paise_per_rupee);
+    }
+
+    /**
+     * Formats paise as rupees with exactly two fraction digits, e.g.
+     * {@code 150050} as {@code 1500.50}.
+     */
+    public static String format(long paise) {
+        StringBuilder text = new StringBuilder(24);
+        appendTo(text, paise);
+        return text.toString();
+    }
+
+    public static StringBuilder appendTo(StringBuilder text, long paise) {
+        if (paise < 0) {
+            text.append('-');
+        }
+        // Long.MIN_VALUE has no positive counterpart; the unsigned helpers cover it.
+        long rupees = Long.divideUnsigned(Math.abs(paise), paise_per_rupee);
+        long fraction = Long.remainderUnsigned(Math.abs(paise), paise_per_rupee);
+        text.append(Long.toUnsignedString(rupees)).append('.');
+        if (fraction < 10) {
+            text.append('0');
+        }
+        return text.append(fraction);
+    }
+
+    private static NumberFormatException invalid(CharSequence text) {
+        return new NumberFormatException("Invalid amount: " + text);
+    }
+}
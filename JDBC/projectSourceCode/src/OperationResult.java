@@ -0,0 +1,25 @@
+/**
+ * What a non-interactive banking operation returns instead of printing.
+ *
+ * {@code account_number} and {@code balance} are only filled in by the operations
+ * that produce them (opening an account, checking a balance). Balances are in
+ * paise; {@link Money#format} renders them for display.
+ */
+public record OperationResult(TransactionStatus status, long account_number, long balance, String message) {
+
+    public static OperationResult success(String message) {
+        return new OperationResult(TransactionStatus.SUCCESS, 0, 0, message);
+    }
+
+    public static OperationResult success(long account_number, long balance, String message) {
+        return new OperationResult(TransactionStatus.SUCCESS, account_number, balance, message);
+    }
+
+    public static OperationResult failure(TransactionStatus status, String message) {
+        return new OperationResult(status, 0, 0, message);
+    }
+
+    public boolean isSuccess() {
+        return status == TransactionStatus.SUCCESS;
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, outcome and SQL time of one banking operation.
+ *
+ * A call is a success when its result says so, a failure when it was declined
+ * (wrong pin, low balance, unknown account, ...) and also an error when it
+ * ended in {@link TransactionStatus#FAILED}, i.e. the database let it down.
+ *
+ * SQL time is the time the call spent holding a pooled connection, which
+ * {@link PooledConnection} reports through {@link Metrics#recordSqlTime}.
+ * Credits and debits applied by the {@link GroupCommitter} run on its threads,
+ * so their SQL time is not attributed to the caller.
+ */
+public class OperationStats implements OperationStatsMBean {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder sqlNanos = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Marks the start of a call on the current thread and returns its start time
+     * for {@link #finish}. The caller must {@link #end} the call in a
+     * {@code finally} block, or a call that throws leaves this operation on a
+     * pooled thread to collect the next call's SQL time.
+     */
+    long start() {
+        Metrics.current.set(this);
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends a call started with {@link #start} on the current thread. Setting
+     * {@code null} rather than removing keeps the thread's entry, so a pooled
+     * thread does not allocate a new one on its next call.
+     */
+    void end() {
+        Metrics.current.set(null);
+    }
+
+    OperationResult finish(long start, OperationResult result) {
+        record(start, result.isSuccess(), result.status() == TransactionStatus.FAILED);
+        return result;
+    }
+
+    // For login, which returns the session or null.
+    Session finish(long start, Session session) {
+        record(start, session != null, false);
+        return session;
+    }
+
+    private void record(long start, boolean success, boolean error) {
+        latency.record(System.nanoTime() - start);
+        if (success) {
+            successes.increment();
+        } else {
+            failures.increment();
+            if (error) {
+                errors.increment();
+            }
+        }
+    }
+
+    void addSqlTime(long nanos) {
+        sqlNanos.add(nanos);
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return successes.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return latency.getMeanNanos() / 1_000_000.0;
+    }
+
+    @Override
+    public double getP50LatencyMillis() {
+        return latency.percentile(50) / 1_000_000.0;
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+        return latency.percentile(99) / 1_000_000.0;
+    }
+
+    @Override
+    public double getP999LatencyMillis() {
+        return latency.percentile(99.9) / 1_000_000.0;
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return latency.getMaxNanos() / 1_000_000.0;
+    }
+
+    @Override
+    public double getTotalSqlTimeMillis() {
+        return sqlNanos.sum() / 1_000_000.0;
+    }
+
+    @Override
+    public double getMeanSqlTimeMillis() {
+        long count = latency.getCount();
+        return count == 0 ? 0 : sqlNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public String stats() {
+        return String.format("%s: count=%d ok=%d failed=%d errors=%d mean=%.3fms p50=%.3fms p99=%.3fms"
+                        + " p999=%.3fms max=%.3fms sql=%.3fms",
+                name, getCount(), getSuccessCount(), getFailureCount(), getErrorCount(),
+                getMeanLatencyMillis(), getP50LatencyMillis(), getP99LatencyMillis(),
+                getP999LatencyMillis(), getMaxLatencyMillis(), getMeanSqlTimeMillis());
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * The JMX view of one operation's {@link OperationStats}. Latencies are in
+ * milliseconds.
+ */
+public interface OperationStatsMBean {
+    long getCount();
+
+    long getSuccessCount();
+
+    long getFailureCount();
+
+    long getErrorCount();
+
+    double getMeanLatencyMillis();
+
+    double getP50LatencyMillis();
+
+    double getP99LatencyMillis();
+
+    double getP999LatencyMillis();
+
+    double getMaxLatencyMillis();
+
+    double getTotalSqlTimeMillis();
+
+    double getMeanSqlTimeMillis();
+}
@@ -0,0 +1,101 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}. Closing it hands the
+ * underlying connection back to the pool instead of closing the socket.
+ */
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private final List<Ledger.Entry> ledgerEntries = new ArrayList<>();
+    private volatile long lastUsed = System.currentTimeMillis();
+    private boolean checkedOut;
+    private long checkedOutAt;
+
+    PooledConnection(ConnectionPool pool, Connection connection, StatementCache statementCache) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statementCache = statementCache;
+    }
+
+    public Connection connection() {
+        return connection;
+    }
+
+    ConnectionPool pool() {
+        return pool;
+    }
+
+    /**
+     * Returns the cached statement for {@code sql} on this connection. Do not close
+     * it; it is closed when it is evicted or when the connection is discarded.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return statementCache.prepare(sql);
+    }
+
+    /**
+     * Buffers a ledger entry for the current transaction. It is written by
+     * {@link #commit()} and dropped by {@link #rollback()}.
+     */
+    public void record(Ledger.Entry entry) throws SQLException {
+        ledgerEntries.add(entry);
+        if (ledgerEntries.size() >= Ledger.flush_batch_size) {
+            flushLedger();
+        }
+    }
+
+    /**
+     * Writes the buffered ledger entries and commits the transaction.
+     */
+    public void commit() throws SQLException {
+        flushLedger();
+        connection.commit();
+    }
+
+    public void rollback() throws SQLException {
+        ledgerEntries.clear();
+        connection.rollback();
+    }
+
+    private void flushLedger() throws SQLException {
+        if (!ledgerEntries.isEmpty()) {
+            Ledger.write(this, ledgerEntries);
+            ledgerEntries.clear();
+        }
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    void checkOut() {
+        checkedOut = true;
+        checkedOutAt = System.nanoTime();
+    }
+
+    void closeQuietly() {
+        statementCache.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (checkedOut) {
+            checkedOut = false;
+            Metrics.recordSqlTime(System.nanoTime() - checkedOutAt);
+            ledgerEntries.clear();
+            lastUsed = System.currentTimeMillis();
+            pool.release(this);
+        }
+    }
+}
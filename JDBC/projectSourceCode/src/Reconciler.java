@@ -0,0 +1,338 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that every account's balance equals the sum of its {@link Ledger}
+ * entries, which is what proves the totals right after an incident.
+ *
+ * The account numbers of each shard are split into {@code ranges} contiguous
+ * ranges, scanned in parallel on {@code workers} threads with one pooled
+ * connection each. A range is read in chunks of {@code chunkSize} accounts. Each
+ * chunk is one {@code REPEATABLE READ} transaction, so its balances
+ * and entries come from the same snapshot even while money keeps moving. The
+ * transaction reads the chunk's balances into two {@code long} arrays, then
+ * streams the ledger rows of the same account span in account order (the
+ * {@code ledger_account} index order, so no sort) and merges the two, summing
+ * each account's entries into a {@code long}. Memory is the chunk arrays per
+ * worker however many rows there are.
+ *
+ * Ledger streaming uses a fetch size like {@link StatementExporter}; with MySQL
+ * Connector/J add {@code useCursorFetch=true} to the JDBC URL. Each mismatch is
+ * written to the output file as
+ * {@code account_number,balance_paise,ledger_paise,difference_paise}, with an
+ * empty balance for entries whose account does not exist. Usage:
+ *
+ * <pre>
+ * java -cp out:mysql-connector.jar Reconciler --url "jdbc:mysql://localhost:3306/bank?useCursorFetch=true" \
+ *      --user root --password secret --out mismatches.csv [--ranges 16] [--workers 4] [--chunk 10000] [--fetch 1000]
+ * </pre>
+ */
+public class Reconciler {
+    private static final String account_bounds_query = "SELECT MIN(account_number), MAX(account_number) FROM Accounts";
+    private static final String ledger_bounds_query = "SELECT MIN(account_number), MAX(account_number) FROM Ledger";
+    private static final String accounts_query = "SELECT account_number, balance FROM Accounts "
+            + "WHERE account_number > ? AND account_number <= ? ORDER BY account_number LIMIT ?";
+    private static final String ledger_query = "SELECT account_number, amount FROM Ledger "
+            + "WHERE account_number > ? AND account_number <= ? ORDER BY account_number";
+    private static final int default_ranges = 16;
+    private static final int default_workers = 4;
+    private static final int default_chunk_size = 10000;
+    private static final int default_fetch_size = 1000;
+
+    private record Range(ConnectionPool pool, long range_start, long range_end) {
+    }
+
+    private record Progress(long accounts, long entries, long mismatches, long orphans) {
+    }
+
+    public record Report(int ranges, long accounts, long entries, long mismatches, long orphans, long elapsedNanos) {
+
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : (accounts + entries) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Reconcile: ranges=%d accounts=%d entries=%d mismatches=%d orphans=%d elapsed=%.1fs rate=%.0f rows/s",
+                    ranges, accounts, entries, mismatches, orphans, elapsedNanos / 1e9, rowsPerSecond());
+        }
+    }
+
+    private final ShardRouter router;
+    private final int ranges;
+    private final int workers;
+    private final int chunkSize;
+    private final int fetchSize;
+
+    public Reconciler(ShardRouter router, int ranges, int workers, int chunkSize, int fetchSize) {
+        if (ranges < 1 || workers < 1 || chunkSize < 1 || fetchSize < 1) {
+            throw new IllegalArgumentException("Ranges, workers, chunk size and fetch size must be positive");
+        }
+        this.router = router;
+        this.ranges = ranges;
+        this.workers = workers;
+        this.chunkSize = chunkSize;
+        this.fetchSize = fetchSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = CommandLineOptions.parse(args);
+        if (!options.containsKey("url") || !options.containsKey("out")) {
+            throw new IllegalArgumentException("--url and --out are required");
+        }
+        Path out = Path.of(options.get("out"));
+        int ranges = Integer.parseInt(options.getOrDefault("ranges", String.valueOf(default_ranges)));
+        int workers = Integer.parseInt(options.getOrDefault("workers", String.valueOf(default_workers)));
+        int chunkSize = Integer.parseInt(options.getOrDefault("chunk", String.valueOf(default_chunk_size)));
+        int fetchSize = Integer.parseInt(options.getOrDefault("fetch", String.valueOf(default_fetch_size)));
+        // One connection per worker, and one to spare for planning.
+        try (BankingSystem system = new BankingSystem(options.get("url"), options.getOrDefault("user", "root"),
+                options.getOrDefault("password", ""), workers + 1, false, null, List.of(), List.of(), null, null)) {
+            Report report = system.reconciler(ranges, workers, chunkSize, fetchSize).reconcile(out);
+            System.out.println(report);
+            if (report.mismatches() + report.orphans() > 0) {
+                System.out.println("Mismatches written to " + out);
+            }
+        }
+    }
+
+    /**
+     * Reconciles every shard, writing the mismatches to {@code out}.
+     */
+    public Report reconcile(Path out) throws IOException, SQLException {
+        long start = System.nanoTime();
+        List<Range> pending = new ArrayList<>();
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            pending.addAll(plan(router.shard(shard).primary()));
+        }
+        long accounts = 0;
+        long entries = 0;
+        long mismatches = 0;
+        long orphans = 0;
+        // Set when a range fails, so the others stop after their current chunk.
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, pending.size())));
+        List<Future<Progress>> futures = new ArrayList<>(pending.size());
+        SQLException failure = null;
+        IOException writeFailure = null;
+        try (BufferedWriter writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            writer.write("account_number,balance_paise,ledger_paise,difference_paise");
+            writer.newLine();
+            for (Range range : pending) {
+                futures.add(executor.submit(() -> scan(range, writer, stop)));
+            }
+            // Wait for every range, even after a failure, so no worker is still writing.
+            for (Future<Progress> future : futures) {
+                try {
+                    Progress progress = future.get();
+                    accounts += progress.accounts();
+                    entries += progress.entries();
+                    mismatches += progress.mismatches();
+                    orphans += progress.orphans();
+                } catch (ExecutionException e) {
+                    stop.set(true);
+                    if (e.getCause() instanceof UncheckedIOException ioException) {
+                        writeFailure = ioException.getCause();
+                    } else if (failure == null) {
+                        failure = e.getCause() instanceof SQLException sqlException
+                                ? sqlException : new SQLException("Reconciliation failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            stop.set(true);
+            Thread.currentThread().interrupt();
+            failure = new SQLException("Interrupted while reconciling", e);
+        } finally {
+            stop.set(true);
+            executor.shutdown();
+        }
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return new Report(pending.size(), accounts, entries, mismatches, orphans, System.nanoTime() - start);
+    }
+
+    // Covers both tables, so entries of accounts that do not exist are scanned too.
+    private List<Range> plan(ConnectionPool pool) throws SQLException {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        try (PooledConnection pooled = pool.borrow()) {
+            for (String query : new String[]{account_bounds_query, ledger_bounds_query}) {
+                try (ResultSet resultSet = pooled.prepare(query).executeQuery()) {
+                    resultSet.next();
+                    long low = resultSet.getLong(1);
+                    if (!resultSet.wasNull()) {
+                        min = Math.min(min, low);
+                        max = Math.max(max, resultSet.getLong(2));
+                    }
+                }
+            }
+        }
+        List<Range> planned = new ArrayList<>();
+        if (min > max) {
+            return planned;
+        }
+        long width = Math.max(1, (max - min) / ranges + 1);
+        for (long range_start = min; range_start <= max; range_start += width) {
+            planned.add(new Range(pool, range_start, Math.min(max, range_start + width - 1)));
+        }
+        return planned;
+    }
+
+    private Progress scan(Range range, BufferedWriter writer, AtomicBoolean stop) throws SQLException {
+        Merge merge = new Merge(chunkSize, writer);
+        try (PooledConnection pooled = range.pool().borrow()) {
+            Connection connection = pooled.connection();
+            int isolation = connection.getTransactionIsolation();
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            // Not a cached statement: the fetch size would stick to it.
+            try (PreparedStatement ledgerPreparedStatement = connection.prepareStatement(ledger_query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ledgerPreparedStatement.setFetchSize(fetchSize);
+                long after = range.range_start() - 1;
+                while (after < range.range_end() && !stop.get()) {
+                    PreparedStatement accountsPreparedStatement = pooled.prepare(accounts_query);
+                    accountsPreparedStatement.setLong(1, after);
+                    accountsPreparedStatement.setLong(2, range.range_end());
+                    accountsPreparedStatement.setInt(3, chunkSize);
+                    try (ResultSet resultSet = accountsPreparedStatement.executeQuery()) {
+                        merge.start();
+                        while (resultSet.next()) {
+                            merge.add(resultSet.getLong(1), resultSet.getLong(2));
+                        }
+                    }
+                    // A short chunk is the last one, and also takes the orphans up to the range end.
+                    long through = merge.count == chunkSize ? merge.account_numbers[chunkSize - 1] : range.range_end();
+                    ledgerPreparedStatement.setLong(1, after);
+                    ledgerPreparedStatement.setLong(2, through);
+                    try (ResultSet resultSet = ledgerPreparedStatement.executeQuery()) {
+                        long current = 0;
+                        long sum = 0;
+                        boolean open = false;
+                        while (resultSet.next()) {
+                            long account_number = resultSet.getLong(1);
+                            if (open && account_number != current) {
+                                merge.entries(current, sum);
+                                sum = 0;
+                            }
+                            current = account_number;
+                            open = true;
+                            sum += resultSet.getLong(2);
+                            merge.entries++;
+                        }
+                        if (open) {
+                            merge.entries(current, sum);
+                        }
+                    }
+                    merge.finish();
+                    pooled.commit();
+                    after = through;
+                }
+            } finally {
+                connection.setTransactionIsolation(isolation);
+            }
+        }
+        return new Progress(merge.accounts, merge.entries, merge.mismatches, merge.orphans);
+    }
+
+    /**
+     * The merge of one range: a chunk of balances in account order, joined with
+     * per-account ledger sums arriving in the same order.
+     */
+    private static final class Merge {
+        private final long[] account_numbers;
+        private final long[] balances;
+        private final BufferedWriter writer;
+        private final StringBuilder line = new StringBuilder(64);
+        private int count;
+        private int next;
+        private long accounts;
+        private long entries;
+        private long mismatches;
+        private long orphans;
+
+        Merge(int chunkSize, BufferedWriter writer) {
+            this.account_numbers = new long[chunkSize];
+            this.balances = new long[chunkSize];
+            this.writer = writer;
+        }
+
+        void start() {
+            count = 0;
+            next = 0;
+        }
+
+        void add(long account_number, long balance) {
+            account_numbers[count] = account_number;
+            balances[count] = balance;
+            count++;
+        }
+
+        // Accounts before account_number have no entries; their balance must be 0.
+        void entries(long account_number, long sum) {
+            while (next < count && account_numbers[next] < account_number) {
+                check(account_numbers[next], balances[next], 0);
+                next++;
+            }
+            if (next < count && account_numbers[next] == account_number) {
+                check(account_number, balances[next], sum);
+                next++;
+            } else {
+                orphans++;
+                write(account_number, false, 0, sum);
+            }
+        }
+
+        void finish() {
+            for (; next < count; next++) {
+                check(account_numbers[next], balances[next], 0);
+            }
+            accounts += count;
+        }
+
+        private void check(long account_number, long balance, long sum) {
+            if (balance != sum) {
+                mismatches++;
+                write(account_number, true, balance, sum);
+            }
+        }
+
+        private void write(long account_number, boolean exists, long balance, long sum) {
+            line.setLength(0);
+            line.append(account_number).append(',');
+            if (exists) {
+                line.append(balance);
+            }
+            line.append(',').append(sum).append(',').append(balance - sum);
+            synchronized (writer) {
+                try {
+                    writer.write(line.toString());
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Runs each request against an {@link AccountService} on its own virtual thread.
+ *
+ * A request blocks its virtual thread while it waits for a pooled connection or
+ * for the database, which is cheap, so thousands of sessions can be in flight
+ * while the {@link ConnectionPool} still bounds the work reaching the database.
+ * {@link LoadGenerator} runs its sessions through one.
+ *
+ * Virtual threads need JDK 21 or later, both to compile and to run; on JDK 17
+ * {@code Executors.newVirtualThreadPerTaskExecutor} does not exist.
+ */
+public class RequestDispatcher implements AutoCloseable {
+    private final AccountService service;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public RequestDispatcher(AccountService service) {
+        this.service = service;
+    }
+
+    /**
+     * Submits one request, e.g.
+     * {@code dispatcher.submit(s -> s.credit(account_number, amount, pin))}.
+     */
+    public <T> CompletableFuture<T> submit(Function<AccountService, T> request) {
+        return CompletableFuture.supplyAsync(() -> request.apply(service), executor);
+    }
+
+    /**
+     * Stops accepting requests and waits for the ones in flight to finish.
+     */
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
@@ -0,0 +1,96 @@
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Re-runs a unit of database work when it fails with a deadlock or a
+ * serialization failure, sleeping a random ("full jitter") exponential backoff
+ * between attempts so that two colliding transactions do not collide again.
+ *
+ * Retries are counted per operation name, which shows how much contention the
+ * hot accounts see.
+ */
+public class RetryPolicy {
+    // MySQL vendor codes: deadlock found, lock wait timeout exceeded.
+    private static final int mysql_deadlock = 1213;
+    private static final int mysql_lock_wait_timeout = 1205;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final ConcurrentHashMap<String, LongAdder> retries = new ConcurrentHashMap<>();
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * One attempt of the work. It must roll back its own transaction before
+     * throwing, which returning a {@link PooledConnection} to the pool does.
+     */
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    public <T> T run(String operation, SqlWork<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.run();
+            } catch (SQLException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                retries.computeIfAbsent(operation, k -> new LongAdder()).increment();
+                backoff(attempt);
+            }
+        }
+    }
+
+    static boolean isRetryable(SQLException e) {
+        for (SQLException current = e; current != null; current = current.getNextException()) {
+            String state = current.getSQLState();
+            // Class 40 is "transaction rollback": 40001 serialization failure, 40P01 deadlock.
+            if (state != null && state.startsWith("40")) {
+                return true;
+            }
+            if (current.getErrorCode() == mysql_deadlock || current.getErrorCode() == mysql_lock_wait_timeout) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void backoff(int attempt) throws SQLException {
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while backing off", e);
+        }
+    }
+
+    public long getRetries(String operation) {
+        LongAdder count = retries.get(operation);
+        return count == null ? 0 : count.sum();
+    }
+
+    public Map<String, Long> getRetryCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        retries.forEach((operation, count) -> counts.put(operation, count.sum()));
+        return counts;
+    }
+
+    public String stats() {
+        return "Retries: " + getRetryCounts();
+    }
+}
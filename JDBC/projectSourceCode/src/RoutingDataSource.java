@@ -0,0 +1,286 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends writes to the primary pool and pure reads to read replicas.
+ *
+ * {@link #borrow()} and its variants always return a primary connection.
+ * {@link #borrowRead(long)} and {@link #borrowRead(String)} pick the replicas
+ * round-robin, skipping any whose replication lag is above
+ * {@code maxLagMillis}, and fall back to the primary when none qualifies or a
+ * replica cannot be reached.
+ *
+ * Lag is measured with a heartbeat row: every {@code heartbeatMillis} the
+ * monitor writes the current time to {@code replication_heartbeat} on the
+ * primary and reads it back from each replica. The age of the newest beat a
+ * replica has seen is its lag, so it includes up to one heartbeat period.
+ *
+ * Reads follow writes: once an account number or an email has been written,
+ * through {@link #borrow(long)}, {@link #borrow(String)} or {@code markWrite},
+ * reads of it go to the primary for {@code readYourWritesMillis}, so a client
+ * never reads a replica that has not caught up with what it just wrote. The
+ * window is kept per account and per email rather than per thread, because a
+ * client's requests run on a different thread each time. With no replicas every
+ * read goes to the primary and no monitor runs.
+ */
+public class RoutingDataSource implements AutoCloseable {
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS replication_heartbeat("
+            + "id INT PRIMARY KEY, "
+            + "beat_at BIGINT NOT NULL)";
+    private static final String update_query = "UPDATE replication_heartbeat SET beat_at = ? WHERE id = 1";
+    private static final String insert_query = "INSERT INTO replication_heartbeat(id, beat_at) VALUES(1, ?)";
+    private static final String select_query = "SELECT beat_at FROM replication_heartbeat WHERE id = 1";
+
+    private static final class Replica {
+        final ConnectionPool pool;
+        // Unknown until the first heartbeat has been read back.
+        volatile long lagMillis = Long.MAX_VALUE;
+
+        Replica(ConnectionPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    private final ConnectionPool primary;
+    private final Replica[] replicas;
+    private final long maxLagMillis;
+    private final long readYourWritesNanos;
+    private final ScheduledExecutorService monitor;
+    private final AtomicInteger next = new AtomicInteger();
+    // When each recently written account number (Long) or email (String) was
+    // last written; entries past the window are dropped by the monitor.
+    private final ConcurrentHashMap<Object, Long> lastWrites = new ConcurrentHashMap<>();
+
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder stickyReads = new LongAdder();
+    private final LongAdder fallbackReads = new LongAdder();
+    private final LongAdder replicaErrors = new LongAdder();
+
+    /**
+     * Takes ownership of the replica pools and closes them in {@link #close()};
+     * the primary pool stays with the caller.
+     */
+    public RoutingDataSource(ConnectionPool primary, List<ConnectionPool> replicaPools,
+                             long maxLagMillis, long readYourWritesMillis, long heartbeatMillis) {
+        if (maxLagMillis < 0 || readYourWritesMillis < 0 || heartbeatMillis < 1) {
+            throw new IllegalArgumentException("Invalid routing settings: maxLag=" + maxLagMillis
+                    + ", readYourWrites=" + readYourWritesMillis + ", heartbeat=" + heartbeatMillis);
+        }
+        this.primary = primary;
+        this.replicas = replicaPools.stream().map(Replica::new).toArray(Replica[]::new);
+        this.maxLagMillis = maxLagMillis;
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+        if (replicas.length == 0) {
+            this.monitor = null;
+            return;
+        }
+        this.monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replication-lag-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Until the first beat has been read back, every read goes to the primary.
+        monitor.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public ConnectionPool primary() {
+        return primary;
+    }
+
+    /**
+     * Borrows a primary connection, e.g. for a write that no read needs to
+     * follow or whose keys the caller marks itself.
+     */
+    public PooledConnection borrow() throws SQLException {
+        return primary.borrow();
+    }
+
+    /**
+     * Borrows a primary connection to write {@code account_number}, whose reads
+     * then go to the primary for the read-your-writes window.
+     */
+    public PooledConnection borrow(long account_number) throws SQLException {
+        markWrite(account_number);
+        return primary.borrow();
+    }
+
+    /**
+     * Borrows a primary connection to write the rows of {@code email}.
+     */
+    public PooledConnection borrow(String email) throws SQLException {
+        markWrite(email);
+        return primary.borrow();
+    }
+
+    /**
+     * Records a write of {@code account_number} made on another connection,
+     * e.g. by the group committer, or a second account written by one transaction.
+     */
+    public void markWrite(long account_number) {
+        mark(account_number);
+    }
+
+    public void markWrite(String email) {
+        mark(email);
+    }
+
+    private void mark(Object key) {
+        if (replicas.length > 0) {
+            lastWrites.put(key, System.nanoTime());
+        }
+    }
+
+    /**
+     * Borrows a connection to read {@code account_number}, which may be served
+     * slightly stale unless the account was written within the window.
+     */
+    public PooledConnection borrowRead(long account_number) throws SQLException {
+        return borrowRead((Object) account_number);
+    }
+
+    /**
+     * Borrows a connection to read the rows of {@code email}.
+     */
+    public PooledConnection borrowRead(String email) throws SQLException {
+        return borrowRead((Object) email);
+    }
+
+    private PooledConnection borrowRead(Object key) throws SQLException {
+        if (replicas.length == 0) {
+            return primary.borrow();
+        }
+        Long wroteAt = lastWrites.get(key);
+        if (wroteAt != null && System.nanoTime() - wroteAt < readYourWritesNanos) {
+            stickyReads.increment();
+            return primary.borrow();
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            Replica replica = replicas[(start + i) % replicas.length];
+            if (replica.lagMillis > maxLagMillis) {
+                continue;
+            }
+            try {
+                PooledConnection pooled = replica.pool.borrow();
+                replicaReads.increment();
+                return pooled;
+            } catch (SQLException e) {
+                // Keep it out of rotation until the next heartbeat reaches it.
+                replica.lagMillis = Long.MAX_VALUE;
+                replicaErrors.increment();
+            }
+        }
+        fallbackReads.increment();
+        return primary.borrow();
+    }
+
+    /**
+     * Whether {@code pooled} came from the primary. Reads from a replica may be
+     * stale and must not feed caches that writes invalidate.
+     */
+    public boolean isPrimary(PooledConnection pooled) {
+        return pooled.pool() == primary;
+    }
+
+    private void heartbeat() {
+        long now = System.nanoTime();
+        lastWrites.values().removeIf(wroteAt -> now - wroteAt >= readYourWritesNanos);
+        long beat = System.currentTimeMillis();
+        try (PooledConnection pooled = primary.borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(update_query);
+            preparedStatement.setLong(1, beat);
+            if (preparedStatement.executeUpdate() == 0) {
+                PreparedStatement insertPreparedStatement = pooled.prepare(insert_query);
+                insertPreparedStatement.setLong(1, beat);
+                insertPreparedStatement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            // Without a beat the replicas' lag only grows, which is the safe direction.
+        }
+        for (Replica replica : replicas) {
+            replica.lagMillis = measureLag(replica);
+        }
+    }
+
+    private static long measureLag(Replica replica) {
+        try (PooledConnection pooled = replica.pool.borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(select_query);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return Math.max(0, System.currentTimeMillis() - resultSet.getLong("beat_at"));
+                }
+            }
+        } catch (SQLException e) {
+            // Unreachable replicas are treated as infinitely behind.
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public int getReplicaCount() {
+        return replicas.length;
+    }
+
+    public int getHealthyReplicas() {
+        int healthy = 0;
+        for (Replica replica : replicas) {
+            if (replica.lagMillis <= maxLagMillis) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public long getMaxReplicaLagMillis() {
+        long max = 0;
+        for (Replica replica : replicas) {
+            max = Math.max(max, replica.lagMillis);
+        }
+        return max;
+    }
+
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    public long getStickyReads() {
+        return stickyReads.sum();
+    }
+
+    public long getFallbackReads() {
+        return fallbackReads.sum();
+    }
+
+    public long getReplicaErrors() {
+        return replicaErrors.sum();
+    }
+
+    public String stats() {
+        long maxLag = getMaxReplicaLagMillis();
+        StringBuilder stats = new StringBuilder(String.format(
+                "Routing: replicas=%d healthy=%d maxLag=%s replicaReads=%d stickyReads=%d fallbackReads=%d replicaErrors=%d",
+                getReplicaCount(), getHealthyReplicas(), maxLag == Long.MAX_VALUE ? "unknown" : maxLag + "ms",
+                getReplicaReads(), getStickyReads(), getFallbackReads(), getReplicaErrors()));
+        for (int i = 0; i < replicas.length; i++) {
+            stats.append(System.lineSeparator()).append("Replica ").append(i).append(' ').append(replicas[i].pool.stats());
+        }
+        return stats.toString();
+    }
+
+    @Override
+    public void close() {
+        if (monitor != null) {
+            monitor.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The tables the banking app needs. Every statement is {@code CREATE TABLE IF
+ * NOT EXISTS}, so running it against an existing database changes nothing; it
+ * is what lets the load generator start from an empty in-process database.
+ *
+ * Balances and amounts are {@code BIGINT} counts of paise (see {@link Money}).
+ * A database created while they were {@code DOUBLE} rupees is not converted by
+ * {@code IF NOT EXISTS}; it needs a one-off migration, e.g. for Accounts:
+ *
+ * <pre>
+ * UPDATE Accounts SET balance = ROUND(balance * 100);
+ * ALTER TABLE Accounts MODIFY balance BIGINT NOT NULL;
+ * </pre>
+ *
+ * and likewise for {@code Ledger.amount} and {@code idempotency_keys.balance}.
+ * An {@code idempotency_keys} table from before keys carried a fingerprint
+ * needs the column added; its old rows then answer retries with a conflict
+ * until they are purged:
+ *
+ * <pre>
+ * ALTER TABLE idempotency_keys ADD fingerprint VARCHAR(64) NOT NULL DEFAULT '';
+ * </pre>
+ *
+ * Likewise an {@code account_directory} from before claims were timestamped:
+ *
+ * <pre>
+ * ALTER TABLE account_directory ADD claimed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP;
+ * </pre>
+ *
+ * and a {@code shard_transfers} from before legs named their idempotency key:
+ *
+ * <pre>
+ * ALTER TABLE shard_transfers ADD idempotency_key VARCHAR(64);
+ * </pre>
+ */
+public class Schema {
+    static final String create_user_query = "CREATE TABLE IF NOT EXISTS User("
+            + "full_name VARCHAR(255) NOT NULL, "
+            + "email VARCHAR(255) PRIMARY KEY, "
+            + "password VARCHAR(255) NOT NULL)";
+    static final String create_accounts_query = "CREATE TABLE IF NOT EXISTS Accounts("
+            + "account_number BIGINT PRIMARY KEY, "
+            + "full_name VARCHAR(255) NOT NULL, "
+            + "email VARCHAR(255) NOT NULL UNIQUE, "
+            + "balance BIGINT NOT NULL, "
+            + "security_pin CHAR(4) NOT NULL)";
+
+    public static void create(ConnectionPool pool) throws SQLException {
+        try (PooledConnection pooled = pool.borrow();
+             Statement statement = pooled.connection().createStatement()) {
+            statement.executeUpdate(create_user_query);
+            statement.executeUpdate(create_accounts_query);
+            statement.executeUpdate(AccountNumberAllocator.create_table_query);
+            statement.executeUpdate(Ledger.create_table_query);
+            statement.executeUpdate(IdempotencyStore.create_table_query);
+            statement.executeUpdate(ShardedLedgerEngine.create_table_query);
+            statement.executeUpdate(RoutingDataSource.create_table_query);
+            statement.executeUpdate(ShardRouter.create_directory_query);
+            statement.executeUpdate(TransferCoordinator.create_table_query);
+            statement.executeUpdate(InterestAccrual.create_table_query);
+        }
+    }
+}
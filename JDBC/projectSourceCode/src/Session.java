@@ -0,0 +1,20 @@
+/**
+ * A logged-in user, as returned by {@link User#login}: the email, the account
+ * number and the balance at login time, all read in one joined query.
+ *
+ * {@code account_number} is 0 while the user has no account yet. The balance is
+ * a snapshot; money operations and balance checks still go to the database.
+ */
+public record Session(String email, long account_number, long balance) {
+
+    public boolean hasAccount() {
+        return account_number != 0;
+    }
+
+    /**
+     * The session after opening an account in it.
+     */
+    public Session withAccount(long account_number, long balance) {
+        return new Session(email, account_number, balance);
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.List;
+
+/**
+ * Maps account numbers to the database that holds them.
+ *
+ * Account {@code n} lives on shard {@code n mod shardCount}. Account numbers
+ * are handed out in sequence, so accounts spread evenly over the shards. Shard
+ * 0 is the home shard: it also holds the users, the account number allocator
+ * and, when there is more than one shard, the {@code account_directory} that
+ * maps each email to its account number and keeps emails unique across shards.
+ *
+ * With a single shard the router sends everything to one data source and the
+ * directory is not used.
+ */
+public class ShardRouter {
+    static final String create_directory_query = "CREATE TABLE IF NOT EXISTS account_directory("
+            + "email VARCHAR(255) PRIMARY KEY, "
+            + "account_number BIGINT NOT NULL, "
+            + "claimed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+
+    private final RoutingDataSource[] shards;
+
+    public ShardRouter(List<RoutingDataSource> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = shards.toArray(RoutingDataSource[]::new);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public boolean isSharded() {
+        return shards.length > 1;
+    }
+
+    public int shardOf(long account_number) {
+        return (int) Math.floorMod(account_number, (long) shards.length);
+    }
+
+    public RoutingDataSource forAccount(long account_number) {
+        return shards[shardOf(account_number)];
+    }
+
+    public RoutingDataSource shard(int shard) {
+        return shards[shard];
+    }
+
+    public RoutingDataSource home() {
+        return shards[0];
+    }
+
+    public String stats() {
+        StringBuilder stats = new StringBuilder("Shards: ").append(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            stats.append(System.lineSeparator()).append("Shard ").append(i).append(' ').append(shards[i].primary().stats());
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,809 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * An optional in-memory engine for credits, debits, transfers and balance
+ * checks, for workloads where even one pooled database round trip per
+ * operation is too slow.
+ *
+ * Balances live in memory, partitioned by account number into shards. Each
+ * shard is owned by a single thread that takes commands from a lock-free queue,
+ * so an operation is a few map lookups and no locks. A transfer between two
+ * shards debits the sender on its shard and hands the credit to the receiver's
+ * shard; if the receiver does not exist the sender is refunded.
+ *
+ * An operation is acknowledged only once its record is in the append log and
+ * the log has been forced to disk. Records carry deltas, not balances. A
+ * persister thread writes them to {@code Accounts} and {@code Ledger} in ordered
+ * batches and, in the same transaction, advances the checkpoint in
+ * {@code engine_checkpoint}. On startup, records past the checkpoint are applied
+ * first, so nothing acknowledged is lost and nothing is applied twice. A
+ * transfer is logged as one record only after both legs were applied, so a
+ * crash in between loses neither half of an acknowledged transfer.
+ *
+ * An operation's idempotency key, if it has one, is written into its log record
+ * and inserted into {@code idempotency_keys} by the persister in the same
+ * transaction as the balances, so a key survives a restart exactly when its
+ * operation does. The caller claims the key in the {@link IdempotencyStore}
+ * before submitting; see {@link AccountManager}.
+ *
+ * Each shard's inbox holds at most {@code max_inbox_size} new operations, and
+ * no new operations are taken while more than {@code max_persist_lag} logged
+ * records wait for the database. Beyond either bound an operation is answered
+ * with {@link TransactionStatus#REJECTED} at once instead of queueing without
+ * limit; the second leg of a transfer and refunds are always queued.
+ *
+ * The log format carries the key; drain the log with a clean shutdown before
+ * starting a build that writes it, or the unpersisted tail is not recovered.
+ *
+ * While the engine runs it must be the only writer of balances: every money
+ * movement has to go through it. Accounts opened after startup are loaded on
+ * first use. Balance checks see operations that are applied but not yet forced
+ * to the log.
+ */
+public final class ShardedLedgerEngine implements AutoCloseable {
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS engine_checkpoint("
+            + "name VARCHAR(32) PRIMARY KEY, sequence BIGINT NOT NULL)";
+    private static final String checkpoint_name = "ledger_engine";
+    private static final String checkpoint_query = "SELECT sequence FROM engine_checkpoint WHERE name = ?";
+    private static final String checkpoint_seed_query = "INSERT INTO engine_checkpoint(name, sequence) VALUES(?, 0)";
+    private static final String checkpoint_update_query = "UPDATE engine_checkpoint SET sequence = ? WHERE name = ?";
+    private static final String load_query = "SELECT account_number, balance, security_pin FROM Accounts";
+    private static final String account_query = "SELECT balance, security_pin FROM Accounts WHERE account_number = ?";
+    private static final String apply_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ?";
+
+    // sequence, type, account, counterparty, amount in paise, key length; then the key and a crc
+    private static final int header_size = 8 + 1 + 8 + 8 + 8 + 2;
+    private static final int max_key_bytes = IdempotencyStore.max_key_length * 3;
+    private static final int max_record_size = header_size + max_key_bytes + 4;
+    private static final int log_batch_size = 1024;
+    // Each record becomes at most two ledger entries; keep a batch in one ledger flush.
+    private static final int persist_batch_size = Ledger.flush_batch_size / 2;
+    private static final long log_truncate_bytes = 64L << 20;
+    private static final int load_fetch_size = 1000;
+    private static final int max_inbox_size = 16 * 1024;
+    private static final long max_persist_lag = 256 * 1024;
+
+    private enum RecordType {
+        CREDIT, DEBIT, TRANSFER
+    }
+
+    // idempotency_key is null for an operation without one.
+    private record LogRecord(long sequence, RecordType type, long account_number, long counterparty_account, long amount,
+                             String idempotency_key) {
+    }
+
+    // An applied operation waiting for the log to be forced.
+    private record Pending(RecordType type, long account_number, long counterparty_account, long amount,
+                           String idempotency_key, OperationResult result, CompletableFuture<OperationResult> future) {
+    }
+
+    @FunctionalInterface
+    private interface Command {
+        void run() throws SQLException;
+    }
+
+    private static final class Account {
+        long balance;
+        final String security_pin;
+
+        Account(long balance, String security_pin) {
+            this.balance = balance;
+            this.security_pin = security_pin;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final RetryPolicy retryPolicy;
+    private final IdempotencyStore idempotencyStore;
+    private final Shard[] shards;
+    private final FileChannel log;
+    private final Thread logWriter;
+    private final Thread persister;
+    private final Queue<Pending> appends = new ConcurrentLinkedQueue<>();
+    private final Queue<LogRecord> unpersisted = new ConcurrentLinkedQueue<>();
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+    private volatile Throwable logFailure;
+
+    // Written only by the log writer.
+    private long sequence;
+    private volatile long loggedSequence;
+    private volatile long persistedSequence;
+
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder logForces = new LongAdder();
+    private final LongAdder loggedRecords = new LongAdder();
+    private final LongAdder persistBatches = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Key rows are written to {@code pool}, where
+     * {@link IdempotencyStore#load(String, String, String)} reads them.
+     */
+    public ShardedLedgerEngine(ConnectionPool pool, RetryPolicy retryPolicy, IdempotencyStore idempotencyStore,
+                               Path logFile, int shardCount) throws SQLException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.pool = pool;
+        this.retryPolicy = retryPolicy;
+        this.idempotencyStore = idempotencyStore;
+        try {
+            this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new SQLException("Cannot open the engine log " + logFile, e);
+        }
+        try {
+            recover();
+            this.shards = new Shard[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new Shard(i);
+            }
+            loadAccounts();
+        } catch (SQLException | RuntimeException e) {
+            closeLog();
+            throw e;
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        this.logWriter = new Thread(this::logLoop, "ledger-engine-log");
+        this.persister = new Thread(this::persistLoop, "ledger-engine-persister");
+        logWriter.setDaemon(true);
+        persister.setDaemon(true);
+        logWriter.start();
+        persister.start();
+    }
+
+    /**
+     * A {@code null} idempotency key means the operation has none.
+     */
+    public CompletableFuture<OperationResult> credit(long account_number, long amount, String security_pin,
+                                                     String idempotency_key) {
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        if (!admit(future)) {
+            return future;
+        }
+        Shard shard = shardOf(account_number);
+        shard.offer(future, () -> {
+            Account account = shard.account(account_number);
+            if (account == null || !account.security_pin.equals(security_pin)) {
+                future.complete(OperationResult.failure(TransactionStatus.INVALID_PIN, "Invalid Security Pin!"));
+            } else {
+                account.balance += amount;
+                append(RecordType.CREDIT, account_number, 0, amount, idempotency_key, future);
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<OperationResult> debit(long account_number, long amount, String security_pin,
+                                                    String idempotency_key) {
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        if (!admit(future)) {
+            return future;
+        }
+        Shard shard = shardOf(account_number);
+        shard.offer(future, () -> {
+            Account account = shard.account(account_number);
+            if (account == null || !account.security_pin.equals(security_pin)) {
+                future.complete(OperationResult.failure(TransactionStatus.INVALID_PIN, "Invalid Pin!"));
+            } else if (account.balance < amount) {
+                future.complete(OperationResult.failure(TransactionStatus.INSUFFICIENT_BALANCE, "Insufficient Balance!"));
+            } else {
+                account.balance -= amount;
+                append(RecordType.DEBIT, account_number, 0, amount, idempotency_key, future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * A {@code null} pin skips the pin check, for batch transfers.
+     */
+    public CompletableFuture<OperationResult> transfer(long sender_account_number, long receiver_account_number,
+                                                       long amount, String security_pin, String idempotency_key) {
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        if (!admit(future)) {
+            return future;
+        }
+        Shard senderShard = shardOf(sender_account_number);
+        senderShard.offer(future, () -> {
+            Account sender = senderShard.account(sender_account_number);
+            if (sender == null && security_pin == null) {
+                future.complete(OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number"));
+                return;
+            }
+            if (sender == null || (security_pin != null && !sender.security_pin.equals(security_pin))) {
+                future.complete(OperationResult.failure(TransactionStatus.INVALID_PIN, "Invalid Security Pin!"));
+                return;
+            }
+            if (sender.balance < amount) {
+                future.complete(OperationResult.failure(TransactionStatus.INSUFFICIENT_BALANCE, "Insufficient Balance!"));
+                return;
+            }
+            sender.balance -= amount;
+            Shard receiverShard = shardOf(receiver_account_number);
+            if (receiverShard == senderShard) {
+                creditReceiver(senderShard, sender, receiverShard, sender_account_number, receiver_account_number, amount,
+                        idempotency_key, future);
+            } else {
+                receiverShard.submit(future, () -> creditReceiver(senderShard, sender, receiverShard,
+                        sender_account_number, receiver_account_number, amount, idempotency_key, future));
+            }
+        });
+        return future;
+    }
+
+    // Runs on the receiver's shard after the sender was debited; refunds the sender on failure.
+    private void creditReceiver(Shard senderShard, Account sender, Shard receiverShard, long sender_account_number,
+                                long receiver_account_number, long amount, String idempotency_key,
+                                CompletableFuture<OperationResult> future) {
+        Account receiver;
+        try {
+            receiver = receiverShard.account(receiver_account_number);
+        } catch (SQLException e) {
+            refund(senderShard, sender, amount, () -> future.completeExceptionally(e));
+            return;
+        }
+        if (receiver == null) {
+            refund(senderShard, sender, amount, () -> future.complete(
+                    OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number")));
+            return;
+        }
+        receiver.balance += amount;
+        append(RecordType.TRANSFER, sender_account_number, receiver_account_number, amount, idempotency_key, future);
+    }
+
+    private static void refund(Shard senderShard, Account sender, long amount, Runnable then) {
+        if (Thread.currentThread() == senderShard.thread) {
+            sender.balance += amount;
+            then.run();
+        } else {
+            senderShard.enqueue(() -> {
+                sender.balance += amount;
+                then.run();
+            });
+        }
+    }
+
+    public CompletableFuture<OperationResult> balance(long account_number, String security_pin) {
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        if (!admit(future)) {
+            return future;
+        }
+        Shard shard = shardOf(account_number);
+        shard.offer(future, () -> {
+            Account account = shard.account(account_number);
+            if (account == null || !account.security_pin.equals(security_pin)) {
+                future.complete(OperationResult.failure(TransactionStatus.INVALID_PIN, "Invalid Pin!"));
+            } else {
+                future.complete(OperationResult.success(account_number, account.balance, "Balance: "+Money.format(account.balance)));
+            }
+        });
+        return future;
+    }
+
+    private boolean admit(CompletableFuture<OperationResult> future) {
+        Throwable failure = logFailure;
+        if (!accepting || failure != null) {
+            future.completeExceptionally(new SQLException("Ledger engine is not running", failure));
+            return false;
+        }
+        return true;
+    }
+
+    private Shard shardOf(long account_number) {
+        return shards[(int) Math.floorMod(account_number, (long) shards.length)];
+    }
+
+    private void append(RecordType type, long account_number, long counterparty_account, long amount,
+                        String idempotency_key, CompletableFuture<OperationResult> future) {
+        operations.increment();
+        appends.add(new Pending(type, account_number, counterparty_account, amount, idempotency_key,
+                succeeded(type, amount), future));
+        Throwable failure = logFailure;
+        if (failure != null) {
+            failPending(failure);
+        }
+        LockSupport.unpark(logWriter);
+    }
+
+    // The result of an applied operation, as the database path words it.
+    private static OperationResult succeeded(RecordType type, long amount) {
+        return switch (type) {
+            case CREDIT -> OperationResult.success("Rs."+Money.format(amount)+" credited Successfully");
+            case DEBIT -> OperationResult.success("Rs."+Money.format(amount)+" debited Successfully");
+            case TRANSFER -> OperationResult.success("Rs."+Money.format(amount)+" Transferred Successfully");
+        };
+    }
+
+    // The key row of a logged operation, with the operation name and fingerprint AccountManager uses.
+    private static IdempotencyStore.Row keyRow(LogRecord record) {
+        return switch (record.type()) {
+            case CREDIT -> new IdempotencyStore.Row(record.idempotency_key(), "credit_money",
+                    IdempotencyStore.fingerprint(record.account_number(), record.amount()),
+                    succeeded(record.type(), record.amount()));
+            case DEBIT -> new IdempotencyStore.Row(record.idempotency_key(), "debit_money",
+                    IdempotencyStore.fingerprint(record.account_number(), record.amount()),
+                    succeeded(record.type(), record.amount()));
+            case TRANSFER -> new IdempotencyStore.Row(record.idempotency_key(), "transfer_money",
+                    IdempotencyStore.fingerprint(record.account_number(), record.counterparty_account(), record.amount()),
+                    succeeded(record.type(), record.amount()));
+        };
+    }
+
+    private final class Shard implements Runnable {
+        final Queue<Command> inbox = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        // Only touched by this shard's thread once it has started.
+        final Map<Long, Account> accounts = new HashMap<>();
+        final Thread thread;
+
+        Shard(int index) {
+            thread = new Thread(this, "ledger-engine-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        // Queues a new operation, or rejects it if the inbox is full or the database is far behind.
+        void offer(CompletableFuture<OperationResult> future, Command command) {
+            if (queued.incrementAndGet() > max_inbox_size || getPersistLag() > max_persist_lag) {
+                queued.decrementAndGet();
+                rejected.increment();
+                future.complete(OperationResult.failure(TransactionStatus.REJECTED, "Server busy, please try again"));
+                return;
+            }
+            inFlight.incrementAndGet();
+            // close() may have cleared accepting since admit(), and then may already
+            // have seen inFlight at zero and be stopping this thread: back out.
+            if (!accepting) {
+                inFlight.decrementAndGet();
+                queued.decrementAndGet();
+                future.completeExceptionally(new SQLException("Ledger engine is not running"));
+                return;
+            }
+            inbox.add(wrap(future, command));
+            LockSupport.unpark(thread);
+        }
+
+        void submit(CompletableFuture<OperationResult> future, Command command) {
+            enqueue(wrap(future, command));
+        }
+
+        private Command wrap(CompletableFuture<OperationResult> future, Command command) {
+            return () -> {
+                try {
+                    command.run();
+                } catch (SQLException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            };
+        }
+
+        // Also used for the second leg of a transfer and for refunds, which must
+        // run even while the engine is closing or its inbox is full.
+        void enqueue(Command command) {
+            queued.incrementAndGet();
+            inFlight.incrementAndGet();
+            inbox.add(command);
+            LockSupport.unpark(thread);
+        }
+
+        // Loads an account opened after startup; null if it does not exist.
+        Account account(long account_number) throws SQLException {
+            Account account = accounts.get(account_number);
+            if (account == null) {
+                try (PooledConnection pooled = pool.borrow()) {
+                    PreparedStatement preparedStatement = pooled.prepare(account_query);
+                    preparedStatement.setLong(1, account_number);
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        if (resultSet.next()) {
+                            account = new Account(resultSet.getLong("balance"), resultSet.getString("security_pin"));
+                            accounts.put(account_number, account);
+                        }
+                    }
+                }
+            }
+            return account;
+        }
+
+        @Override
+        public void run() {
+            while (running || !inbox.isEmpty()) {
+                Command command = inbox.poll();
+                if (command == null) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+                try {
+                    command.run();
+                } catch (SQLException | RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    queued.decrementAndGet();
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes whatever has been applied since the last force as one write, forces
+     * the log once for the whole group and only then acknowledges the callers.
+     */
+    private void logLoop() {
+        List<Pending> batch = new ArrayList<>(log_batch_size);
+        List<LogRecord> records = new ArrayList<>(log_batch_size);
+        ByteBuffer buffer = ByteBuffer.allocate(max_record_size * log_batch_size);
+        CRC32 crc = new CRC32();
+        while (running || !appends.isEmpty()) {
+            Pending pending;
+            while (batch.size() < log_batch_size && (pending = appends.poll()) != null) {
+                batch.add(pending);
+            }
+            if (batch.isEmpty()) {
+                truncateIfPersisted();
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            buffer.clear();
+            for (Pending next : batch) {
+                LogRecord record = new LogRecord(++sequence, next.type(), next.account_number(),
+                        next.counterparty_account(), next.amount(), next.idempotency_key());
+                encode(buffer, record, crc);
+                records.add(record);
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                log.force(false);
+            } catch (IOException e) {
+                // The applied balances are no longer backed by the log: stop the engine.
+                // A restart recovers from the log and the database.
+                logFailure = e;
+                for (Pending failed : batch) {
+                    failed.future().completeExceptionally(e);
+                }
+                failPending(e);
+                return;
+            }
+            loggedSequence = sequence;
+            logForces.increment();
+            loggedRecords.add(batch.size());
+            unpersisted.addAll(records);
+            LockSupport.unpark(persister);
+            for (Pending done : batch) {
+                done.future().complete(done.result());
+            }
+            batch.clear();
+            records.clear();
+        }
+    }
+
+    private void failPending(Throwable failure) {
+        Pending pending;
+        while ((pending = appends.poll()) != null) {
+            pending.future().completeExceptionally(failure);
+        }
+    }
+
+    // Only the log writer appends, so once everything written is persisted the file can go.
+    private void truncateIfPersisted() {
+        try {
+            if (persistedSequence == sequence && log.size() >= log_truncate_bytes) {
+                log.truncate(0);
+                log.force(true);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void persistLoop() {
+        List<LogRecord> batch = new ArrayList<>(persist_batch_size);
+        while (running || logWriter.isAlive() || !unpersisted.isEmpty() || !batch.isEmpty()) {
+            LogRecord record;
+            while (batch.size() < persist_batch_size && (record = unpersisted.poll()) != null) {
+                batch.add(record);
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            try {
+                persist(batch);
+                persistedSequence = batch.get(batch.size() - 1).sequence();
+                batch.clear();
+            } catch (SQLException | RuntimeException e) {
+                // Keep the batch and try again; the records are safe in the log meanwhile.
+                e.printStackTrace();
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /*
+     * Applies a batch of records in one transaction: the balance deltas summed
+     * per account and sent in ascending account order, the ledger entries, the
+     * idempotency keys and the new checkpoint.
+     */
+    private void persist(List<LogRecord> batch) throws SQLException {
+        retryPolicy.run("ledger_engine_persist", () -> {
+            try (PooledConnection pooled = pool.borrow()) {
+                pooled.connection().setAutoCommit(false);
+                Map<Long, Long> deltas = new TreeMap<>();
+                List<IdempotencyStore.Row> keys = new ArrayList<>();
+                for (LogRecord record : batch) {
+                    if (record.idempotency_key() != null) {
+                        keys.add(keyRow(record));
+                    }
+                    switch (record.type()) {
+                        case CREDIT -> {
+                            deltas.merge(record.account_number(), record.amount(), Long::sum);
+                            pooled.record(Ledger.Entry.credit(record.account_number(), record.amount()));
+                        }
+                        case DEBIT -> {
+                            deltas.merge(record.account_number(), -record.amount(), Long::sum);
+                            pooled.record(Ledger.Entry.debit(record.account_number(), record.amount()));
+                        }
+                        case TRANSFER -> {
+                            deltas.merge(record.account_number(), -record.amount(), Long::sum);
+                            deltas.merge(record.counterparty_account(), record.amount(), Long::sum);
+                            pooled.record(Ledger.Entry.transferOut(record.account_number(), record.counterparty_account(), record.amount()));
+                            pooled.record(Ledger.Entry.transferIn(record.counterparty_account(), record.account_number(), record.amount()));
+                        }
+                    }
+                }
+                PreparedStatement preparedStatement = pooled.prepare(apply_query);
+                for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+                    preparedStatement.setLong(1, delta.getValue());
+                    preparedStatement.setLong(2, delta.getKey());
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                idempotencyStore.insertBatch(pooled, keys);
+                PreparedStatement checkpoint = pooled.prepare(checkpoint_update_query);
+                checkpoint.setLong(1, batch.get(batch.size() - 1).sequence());
+                checkpoint.setString(2, checkpoint_name);
+                checkpoint.executeUpdate();
+                pooled.commit();
+                persistBatches.increment();
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Applies the records a crash left past the checkpoint, then starts a new log.
+     */
+    private void recover() throws SQLException {
+        long checkpoint = readCheckpoint();
+        List<LogRecord> pending = new ArrayList<>();
+        long last = checkpoint;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(max_record_size);
+            CRC32 crc = new CRC32();
+            for (long position = 0; ; position += buffer.limit()) {
+                if (!readRecord(buffer, position)) {
+                    break;
+                }
+                LogRecord record = decode(buffer, crc);
+                if (record == null) {
+                    // A torn write at the tail was never acknowledged.
+                    break;
+                }
+                if (record.sequence() > checkpoint) {
+                    pending.add(record);
+                }
+                last = Math.max(last, record.sequence());
+            }
+            for (int from = 0; from < pending.size(); from += persist_batch_size) {
+                persist(pending.subList(from, Math.min(from + persist_batch_size, pending.size())));
+            }
+            recovered.add(pending.size());
+            log.truncate(0);
+            log.force(true);
+        } catch (IOException e) {
+            throw new SQLException("Cannot recover the engine log", e);
+        }
+        sequence = last;
+        loggedSequence = last;
+        persistedSequence = last;
+    }
+
+    // False at the end of the log, including a partly written last record.
+    private boolean readRecord(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear().limit(header_size);
+        if (!fill(buffer, position)) {
+            return false;
+        }
+        int key_length = buffer.getShort(header_size - 2);
+        if (key_length < 0 || key_length > max_key_bytes) {
+            return false;
+        }
+        buffer.limit(header_size + key_length + 4);
+        if (!fill(buffer, position)) {
+            return false;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private boolean fill(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readCheckpoint() throws SQLException {
+        try (PooledConnection pooled = pool.borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(checkpoint_query);
+            preparedStatement.setString(1, checkpoint_name);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getLong("sequence");
+                }
+            }
+            PreparedStatement seed = pooled.prepare(checkpoint_seed_query);
+            seed.setString(1, checkpoint_name);
+            seed.executeUpdate();
+            return 0;
+        }
+    }
+
+    private void loadAccounts() throws SQLException {
+        try (PooledConnection pooled = pool.borrow();
+             PreparedStatement preparedStatement = pooled.connection().prepareStatement(load_query)) {
+            preparedStatement.setFetchSize(load_fetch_size);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    long account_number = resultSet.getLong("account_number");
+                    shardOf(account_number).accounts.put(account_number,
+                            new Account(resultSet.getLong("balance"), resultSet.getString("security_pin")));
+                }
+            }
+        }
+    }
+
+    private static void encode(ByteBuffer buffer, LogRecord record, CRC32 crc) {
+        byte[] key = record.idempotency_key() == null ? new byte[0]
+                : record.idempotency_key().getBytes(StandardCharsets.UTF_8);
+        int start = buffer.position();
+        buffer.putLong(record.sequence())
+                .put((byte) record.type().ordinal())
+                .putLong(record.account_number())
+                .putLong(record.counterparty_account())
+                .putLong(record.amount())
+                .putShort((short) key.length)
+                .put(key);
+        crc.reset();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    // The buffer holds exactly one record, as read by readRecord.
+    private static LogRecord decode(ByteBuffer buffer, CRC32 crc) {
+        int length = buffer.limit();
+        crc.reset();
+        crc.update(buffer.array(), 0, length - 4);
+        if ((int) crc.getValue() != buffer.getInt(length - 4)) {
+            return null;
+        }
+        long record_sequence = buffer.getLong();
+        int type = buffer.get();
+        if (type < 0 || type >= RecordType.values().length) {
+            return null;
+        }
+        long account_number = buffer.getLong();
+        long counterparty_account = buffer.getLong();
+        long amount = buffer.getLong();
+        int key_length = buffer.getShort();
+        String idempotency_key = key_length == 0 ? null
+                : new String(buffer.array(), header_size, key_length, StandardCharsets.UTF_8);
+        return new LogRecord(record_sequence, RecordType.values()[type], account_number, counterparty_account, amount,
+                idempotency_key);
+    }
+
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    public double getAverageForceSize() {
+        long forces = logForces.sum();
+        return forces == 0 ? 0 : (double) loggedRecords.sum() / forces;
+    }
+
+    public long getPersistBatches() {
+        return persistBatches.sum();
+    }
+
+    /**
+     * Records that are durable in the log but not yet in the database.
+     */
+    public long getPersistLag() {
+        return loggedSequence - persistedSequence;
+    }
+
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public String stats() {
+        return String.format("Ledger engine: shards=%d operations=%d logForces=%d avgForceSize=%.1f"
+                        + " persistBatches=%d persistLag=%d recovered=%d rejected=%d",
+                shards.length, getOperations(), logForces.sum(), getAverageForceSize(),
+                getPersistBatches(), getPersistLag(), getRecovered(), getRejected());
+    }
+
+    /**
+     * Stops taking operations, finishes the queued ones and waits for them to be
+     * logged and persisted. Anything the database rejects stays in the log for the
+     * next start.
+     */
+    @Override
+    public void close() {
+        accepting = false;
+        try {
+            // Let transfers that are between their two shards finish.
+            while (inFlight.get() > 0) {
+                Thread.sleep(1);
+            }
+            running = false;
+            for (Shard shard : shards) {
+                LockSupport.unpark(shard.thread);
+                shard.thread.join();
+            }
+            LockSupport.unpark(logWriter);
+            logWriter.join();
+            LockSupport.unpark(persister);
+            persister.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeLog();
+    }
+
+    private void closeLog() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports account data to CSV files: every account, or the ledger of one
+ * account.
+ *
+ * The query runs on a forward-only, read-only statement with a fetch size, so
+ * the driver pulls rows from the server in blocks instead of materializing the
+ * whole result. With MySQL Connector/J this needs {@code useCursorFetch=true} on
+ * the JDBC URL to get a server-side cursor. Rows are copied out of the
+ * {@code ResultSet} in batches, CSV formatting and UTF-8 encoding run on worker
+ * threads, and the encoded batches are written in order to a {@link FileChannel}.
+ * At most {@code depth} batches are in flight, so memory stays flat however many
+ * rows are exported. Balances and amounts are written as integer paise, exactly
+ * as stored. Usage:
+ *
+ * <pre>
+ * java -cp out:mysql-connector.jar StatementExporter --url "jdbc:mysql://localhost:3306/bank?useCursorFetch=true" \
+ *      --user root --password secret --out accounts.csv [--account 10000100] [--fetch 1000]
+ * </pre>
+ */
+public class StatementExporter {
+    private static final String accounts_query = "SELECT account_number, full_name, email, balance "
+            + "FROM Accounts ORDER BY account_number";
+    private static final String transactions_query = "SELECT entry_id, created_at, entry_type, counterparty_account, amount "
+            + "FROM Ledger WHERE account_number = ? ORDER BY entry_id";
+    private static final int default_fetch_size = 1000;
+    private static final int rows_per_batch = 1000;
+    // Batches formatted ahead of the one being written.
+    private static final int depth = 8;
+
+    @FunctionalInterface
+    private interface Binder {
+        void bind(PreparedStatement preparedStatement) throws SQLException;
+    }
+
+    public record Report(long rows, long bytes, long elapsedNanos) {
+
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Export: rows=%d bytes=%d elapsed=%.1fs rate=%.0f rows/s",
+                    rows, bytes, elapsedNanos / 1e9, rowsPerSecond());
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final int fetchSize;
+    private final int workers;
+
+    public StatementExporter(ConnectionPool pool, int fetchSize, int workers) {
+        if (fetchSize < 1 || workers < 1) {
+            throw new IllegalArgumentException("Fetch size and workers must be positive");
+        }
+        this.pool = pool;
+        this.fetchSize = fetchSize;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = CommandLineOptions.parse(args);
+        if (!options.containsKey("url") || !options.containsKey("out")) {
+            throw new IllegalArgumentException("--url and --out are required");
+        }
+        Path out = Path.of(options.get("out"));
+        int fetchSize = Integer.parseInt(options.getOrDefault("fetch", String.valueOf(default_fetch_size)));
+        try (BankingSystem system = new BankingSystem(options.get("url"), options.getOrDefault("user", "root"),
+                options.getOrDefault("password", ""), 2, false, null, List.of(), List.of(), null, null)) {
+            StatementExporter exporter = new StatementExporter(system.pool(), fetchSize,
+                    Runtime.getRuntime().availableProcessors());
+            Report report = options.containsKey("account")
+                    ? exporter.exportTransactions(Long.parseLong(options.get("account")), out)
+                    : exporter.exportAccounts(out);
+            System.out.println(report);
+        }
+    }
+
+    /**
+     * Writes every account, without its security pin, in account number order.
+     */
+    public Report exportAccounts(Path out) throws IOException, SQLException {
+        return export(accounts_query, preparedStatement -> {
+        }, "account_number,full_name,email,balance_paise", out);
+    }
+
+    /**
+     * Writes the ledger entries of one account, oldest first.
+     */
+    public Report exportTransactions(long account_number, Path out) throws IOException, SQLException {
+        return export(transactions_query, preparedStatement -> preparedStatement.setLong(1, account_number),
+                "entry_id,created_at,entry_type,counterparty_account,amount_paise", out);
+    }
+
+    private Report export(String query, Binder binder, String header, Path out) throws IOException, SQLException {
+        long start = System.nanoTime();
+        long rows = 0;
+        long bytes = 0;
+        ExecutorService formatters = Executors.newFixedThreadPool(workers);
+        Deque<Future<ByteBuffer>> formatting = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             PooledConnection pooled = pool.borrow()) {
+            bytes += write(channel, ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.UTF_8)));
+            Connection connection = pooled.connection();
+            // Some drivers only use a cursor inside a transaction; release() rolls it back.
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                preparedStatement.setFetchSize(fetchSize);
+                binder.bind(preparedStatement);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    int columns = resultSet.getMetaData().getColumnCount();
+                    List<String[]> batch = new ArrayList<>(rows_per_batch);
+                    while (resultSet.next()) {
+                        String[] row = new String[columns];
+                        for (int i = 0; i < columns; i++) {
+                            row[i] = resultSet.getString(i + 1);
+                        }
+                        batch.add(row);
+                        rows++;
+                        if (batch.size() == rows_per_batch) {
+                            List<String[]> full = batch;
+                            formatting.addLast(formatters.submit(() -> format(full)));
+                            batch = new ArrayList<>(rows_per_batch);
+                            if (formatting.size() > depth) {
+                                bytes += write(channel, take(formatting));
+                            }
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        List<String[]> last = batch;
+                        formatting.addLast(formatters.submit(() -> format(last)));
+                    }
+                }
+            }
+            while (!formatting.isEmpty()) {
+                bytes += write(channel, take(formatting));
+            }
+            channel.force(true);
+        } finally {
+            formatters.shutdownNow();
+        }
+        return new Report(rows, bytes, System.nanoTime() - start);
+    }
+
+    private static ByteBuffer format(List<String[]> batch) {
+        StringBuilder text = new StringBuilder(batch.size() * 64);
+        for (String[] row : batch) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    text.append(',');
+                }
+                appendField(text, row[i]);
+            }
+            text.append('\n');
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendField(StringBuilder text, String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            text.append(value);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                text.append('"');
+            }
+            text.append(c);
+        }
+        text.append('"');
+    }
+
+    private static ByteBuffer take(Deque<Future<ByteBuffer>> formatting) throws IOException {
+        try {
+            return formatting.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while formatting", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Formatting failed", e.getCause());
+        }
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return written;
+    }
+}
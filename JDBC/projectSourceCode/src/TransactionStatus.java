@@ -0,0 +1,18 @@
+/**
+ * Outcome of a banking operation.
+ */
+public enum TransactionStatus {
+    SUCCESS,
+    INVALID_ACCOUNT,
+    INVALID_PIN,
+    INVALID_AMOUNT,
+    INSUFFICIENT_BALANCE,
+    ALREADY_EXISTS,
+    // Shed by the AdmissionController before it ran; safe to retry later.
+    REJECTED,
+    // Debited, with the credit to the receiver left to the background resolver; it will complete.
+    PENDING,
+    // The idempotency key was already used for a different request; nothing was applied.
+    CONFLICT,
+    FAILED
+}
@@ -0,0 +1,6 @@
+/**
+ * One row of a bulk transfer file: move {@code amount} from the sender to the
+ * receiver account.
+ */
+public record Transfer(long sender_account_number, long receiver_account_number, long amount) {
+}
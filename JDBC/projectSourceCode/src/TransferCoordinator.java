@@ -0,0 +1,514 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Runs transfers whose sender and receiver live on different shards, where no
+ * single database transaction can cover both accounts.
+ *
+ * A transfer runs in two phases around a local coordinator log:
+ *
+ * <ol>
+ * <li>A BEGIN record is appended and forced.</li>
+ * <li>Phase one debits the sender on its shard. In the same transaction it
+ *     writes a {@code DEBITED} row to that shard's {@code shard_transfers}.</li>
+ * <li>Phase two credits the receiver on its shard and writes a
+ *     {@code CREDITED} row there. The row's primary key makes the credit
+ *     happen at most once however often it is retried.</li>
+ * <li>A COMMITTED (or ABORTED) record closes the transfer.</li>
+ * </ol>
+ *
+ * If the receiver cannot be credited, the sender is refunded and its row is
+ * marked {@code REFUNDED}. The sender's idempotency key, which phase one stored
+ * as a success, is rewritten to the refund's result in the same transaction. Every transfer with a BEGIN but no outcome is
+ * resolved from the {@code shard_transfers} rows: on startup, and by a
+ * background resolver when phase two failed at runtime. A missing sender row
+ * means phase one never committed. Each step is idempotent, so resolving a
+ * transfer twice is harmless.
+ *
+ * Between the phases the money is in flight and appears on neither account.
+ * Forces of the log are shared by concurrent transfers. Outcome records are not
+ * forced: if one is lost, recovery resolves the transfer again.
+ */
+public class TransferCoordinator implements AutoCloseable {
+    static final String create_table_query = "CREATE TABLE IF NOT EXISTS shard_transfers("
+            + "transfer_id BIGINT PRIMARY KEY, "
+            + "leg VARCHAR(8) NOT NULL, "
+            + "account_number BIGINT NOT NULL, "
+            + "counterparty_account BIGINT NOT NULL, "
+            + "amount BIGINT NOT NULL, "
+            + "idempotency_key VARCHAR(" + IdempotencyStore.max_key_length + "), "
+            + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+    private static final String insert_leg_query = "INSERT INTO shard_transfers"
+            + "(transfer_id, leg, account_number, counterparty_account, amount, idempotency_key) VALUES(?, ?, ?, ?, ?, ?)";
+    private static final String leg_query = "SELECT leg FROM shard_transfers WHERE transfer_id = ?";
+    private static final String refund_leg_query = "UPDATE shard_transfers SET leg = 'REFUNDED' "
+            + "WHERE transfer_id = ? AND leg = 'DEBITED'";
+    // The sender's key row said the transfer succeeded; after a refund it must say what the caller was told.
+    private static final String refund_key_query = "UPDATE idempotency_keys SET status = ?, message = ? "
+            + "WHERE idempotency_key = (SELECT idempotency_key FROM shard_transfers WHERE transfer_id = ?)";
+    private static final String credit_query = "UPDATE Accounts SET balance = balance + ? WHERE account_number = ?";
+    private static final String exists_query = "SELECT account_number FROM Accounts WHERE account_number = ?";
+
+    // transfer id, state, sender, receiver, amount in paise, crc
+    private static final int record_size = 8 + 1 + 8 + 8 + 8 + 4;
+    private static final long log_truncate_bytes = 64L << 20;
+    private static final long resolve_period_millis = 1000;
+
+    private enum State {
+        BEGIN, COMMITTED, ABORTED
+    }
+
+    private record Intent(long transfer_id, long sender_account_number, long receiver_account_number, long amount) {
+    }
+
+    private final ShardRouter router;
+    private final RetryPolicy retryPolicy;
+    private final BalanceCache balanceCache;
+    private final FileChannel log;
+    private final ScheduledExecutorService resolver;
+    private final Queue<Intent> unresolved = new ConcurrentLinkedQueue<>();
+    // Transfers, including ones being resolved, whose outcome is not logged yet.
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong nextId;
+
+    private final Object appendLock = new Object();
+    private final Object forceLock = new Object();
+    private final ByteBuffer appendBuffer = ByteBuffer.allocate(record_size);
+    private final CRC32 appendCrc = new CRC32();
+    // Guarded by appendLock.
+    private long logEnd;
+    private long appended;
+    private volatile long forcedThrough;
+
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder refunded = new LongAdder();
+    private final LongAdder pending = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder logForces = new LongAdder();
+
+    public TransferCoordinator(ShardRouter router, RetryPolicy retryPolicy, BalanceCache balanceCache, Path logFile) throws SQLException {
+        this.router = router;
+        this.retryPolicy = retryPolicy;
+        this.balanceCache = balanceCache;
+        try {
+            this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new SQLException("Cannot open the coordinator log " + logFile, e);
+        }
+        try {
+            // Ids only need to be unique among transfers that may still be in the log or in shard_transfers.
+            nextId = new AtomicLong(Math.max(recover() + 1, System.currentTimeMillis() << 16));
+        } catch (SQLException | RuntimeException e) {
+            try {
+                log.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+        this.resolver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transfer-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        resolver.scheduleWithFixedDelay(this::resolveUnresolved,
+                resolve_period_millis, resolve_period_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves {@code amount} between accounts on different shards. {@code debit}
+     * runs phase one inside the sender shard's transaction: it takes the money
+     * and returns the result to report, or a failure after which nothing is
+     * committed. A non-null {@code idempotency_key} names the key row that
+     * {@code debit} wrote, so a refund can correct it. The receiver is refreshed in the balance cache here; the caller
+     * invalidates the sender.
+     *
+     * If phase two cannot be finished now, the transfer is handed to the
+     * resolver and the result is {@link TransactionStatus#PENDING}: the money has
+     * left the sender and will reach the receiver, but has not yet.
+     */
+    public OperationResult transfer(long sender_account_number, long receiver_account_number, long amount,
+                                    String idempotency_key, GroupCommitter.Work debit) throws SQLException {
+        if (!exists(receiver_account_number)) {
+            return OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+        }
+        transfers.increment();
+        inFlight.incrementAndGet();
+        try {
+            Intent intent = new Intent(nextId.getAndIncrement(), sender_account_number, receiver_account_number, amount);
+            append(intent, State.BEGIN, true);
+            OperationResult debited;
+            try {
+                debited = retryPolicy.run("transfer_prepare", () -> prepare(intent, idempotency_key, debit));
+            } catch (SQLException e) {
+                // The debit may still have committed; the resolver looks at the sender's shard.
+                unresolved.add(intent);
+                throw e;
+            }
+            if (!debited.isSuccess()) {
+                aborted.increment();
+                append(intent, State.ABORTED, false);
+                return debited;
+            }
+            State state;
+            try {
+                state = retryPolicy.run("transfer_commit", () -> complete(intent));
+            } catch (SQLException e) {
+                // The debit is committed and the BEGIN record is durable, so the credit will follow.
+                e.printStackTrace();
+                unresolved.add(intent);
+                pending.increment();
+                return OperationResult.failure(TransactionStatus.PENDING,
+                        "Rs."+Money.format(amount)+" debited; the transfer will complete shortly");
+            }
+            append(intent, state, false);
+            return state == State.COMMITTED
+                    ? debited
+                    : OperationResult.failure(TransactionStatus.INVALID_ACCOUNT, "Invalid account number");
+        } finally {
+            inFlight.decrementAndGet();
+            truncateIfIdle();
+        }
+    }
+
+    private OperationResult prepare(Intent intent, String idempotency_key, GroupCommitter.Work debit) throws SQLException {
+        try (PooledConnection pooled = router.forAccount(intent.sender_account_number()).borrow(intent.sender_account_number())) {
+            pooled.connection().setAutoCommit(false);
+            OperationResult result = debit.apply(pooled);
+            if (!result.isSuccess()) {
+                pooled.rollback();
+                return result;
+            }
+            insertLeg(pooled, intent, "DEBITED", intent.sender_account_number(), intent.receiver_account_number(),
+                    idempotency_key);
+            pooled.commit();
+            return result;
+        }
+    }
+
+    private State complete(Intent intent) throws SQLException {
+        try (PooledConnection pooled = router.forAccount(intent.receiver_account_number()).borrow(intent.receiver_account_number())) {
+            pooled.connection().setAutoCommit(false);
+            try {
+                insertLeg(pooled, intent, "CREDITED", intent.receiver_account_number(), intent.sender_account_number(), null);
+            } catch (SQLException e) {
+                if (!IdempotencyStore.isDuplicateKey(e)) {
+                    throw e;
+                }
+                // An earlier attempt already credited the receiver.
+                pooled.rollback();
+                committed.increment();
+                return State.COMMITTED;
+            }
+            PreparedStatement preparedStatement = pooled.prepare(credit_query);
+            preparedStatement.setLong(1, intent.amount());
+            preparedStatement.setLong(2, intent.receiver_account_number());
+            if (preparedStatement.executeUpdate() == 0) {
+                pooled.rollback();
+                return refund(intent);
+            }
+            pooled.record(Ledger.Entry.transferIn(intent.receiver_account_number(), intent.sender_account_number(), intent.amount()));
+            pooled.commit();
+        }
+        balanceCache.invalidate(intent.receiver_account_number());
+        committed.increment();
+        return State.COMMITTED;
+    }
+
+    private State refund(Intent intent) throws SQLException {
+        try (PooledConnection pooled = router.forAccount(intent.sender_account_number()).borrow(intent.sender_account_number())) {
+            pooled.connection().setAutoCommit(false);
+            PreparedStatement preparedStatement = pooled.prepare(refund_leg_query);
+            preparedStatement.setLong(1, intent.transfer_id());
+            if (preparedStatement.executeUpdate() > 0) {
+                PreparedStatement creditPreparedStatement = pooled.prepare(credit_query);
+                creditPreparedStatement.setLong(1, intent.amount());
+                creditPreparedStatement.setLong(2, intent.sender_account_number());
+                creditPreparedStatement.executeUpdate();
+                pooled.record(Ledger.Entry.transferRefund(intent.sender_account_number(),
+                        intent.receiver_account_number(), intent.amount()));
+                PreparedStatement keyPreparedStatement = pooled.prepare(refund_key_query);
+                keyPreparedStatement.setString(1, TransactionStatus.INVALID_ACCOUNT.name());
+                keyPreparedStatement.setString(2, "Invalid account number");
+                keyPreparedStatement.setLong(3, intent.transfer_id());
+                keyPreparedStatement.executeUpdate();
+                refunded.increment();
+            }
+            pooled.commit();
+        }
+        balanceCache.invalidate(intent.sender_account_number());
+        aborted.increment();
+        return State.ABORTED;
+    }
+
+    // Decides a transfer whose phase one is over, from the sender shard's row.
+    private State resolve(Intent intent) throws SQLException {
+        String leg;
+        try (PooledConnection pooled = router.forAccount(intent.sender_account_number()).borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(leg_query);
+            preparedStatement.setLong(1, intent.transfer_id());
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                leg = resultSet.next() ? resultSet.getString("leg") : null;
+            }
+        }
+        if (leg == null || leg.equals("REFUNDED")) {
+            aborted.increment();
+            return State.ABORTED;
+        }
+        return complete(intent);
+    }
+
+    private void resolveUnresolved() {
+        int count = unresolved.size();
+        for (int i = 0; i < count; i++) {
+            inFlight.incrementAndGet();
+            Intent intent = unresolved.poll();
+            if (intent == null) {
+                inFlight.decrementAndGet();
+                break;
+            }
+            try {
+                append(intent, resolve(intent), false);
+            } catch (SQLException e) {
+                unresolved.add(intent);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+        truncateIfIdle();
+    }
+
+    private boolean exists(long account_number) throws SQLException {
+        try (PooledConnection pooled = router.forAccount(account_number).primary().borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(exists_query);
+            preparedStatement.setLong(1, account_number);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private static void insertLeg(PooledConnection pooled, Intent intent, String leg,
+                                  long account_number, long counterparty_account, String idempotency_key)
+            throws SQLException {
+        PreparedStatement preparedStatement = pooled.prepare(insert_leg_query);
+        preparedStatement.setLong(1, intent.transfer_id());
+        preparedStatement.setString(2, leg);
+        preparedStatement.setLong(3, account_number);
+        preparedStatement.setLong(4, counterparty_account);
+        preparedStatement.setLong(5, intent.amount());
+        preparedStatement.setString(6, idempotency_key);
+        preparedStatement.executeUpdate();
+    }
+
+    /*
+     * A BEGIN must be durable before phase one commits, so it is forced. The
+     * first caller into forceLock forces everything appended so far, and the
+     * callers queued behind it usually find their record already covered.
+     */
+    private void append(Intent intent, State state, boolean force) throws SQLException {
+        long target;
+        try {
+            synchronized (appendLock) {
+                appendBuffer.clear();
+                encode(appendBuffer, intent, state, appendCrc);
+                appendBuffer.flip();
+                while (appendBuffer.hasRemaining()) {
+                    log.write(appendBuffer, logEnd + appendBuffer.position());
+                }
+                logEnd += record_size;
+                target = ++appended;
+            }
+            if (force) {
+                synchronized (forceLock) {
+                    if (forcedThrough < target) {
+                        long through;
+                        synchronized (appendLock) {
+                            through = appended;
+                        }
+                        log.force(false);
+                        forcedThrough = through;
+                        logForces.increment();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (state == State.BEGIN) {
+                throw new SQLException("Cannot write the coordinator log", e);
+            }
+            // A lost outcome only means the transfer is resolved again on restart.
+            e.printStackTrace();
+        }
+    }
+
+    private void truncateIfIdle() {
+        synchronized (appendLock) {
+            if (inFlight.get() == 0 && unresolved.isEmpty() && logEnd >= log_truncate_bytes) {
+                try {
+                    log.truncate(0);
+                    logEnd = 0;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Resolves what the log left open and returns the highest transfer id seen.
+    private long recover() throws SQLException {
+        Map<Long, Intent> open = new LinkedHashMap<>();
+        long last = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(record_size);
+            CRC32 crc = new CRC32();
+            long position = 0;
+            while (readRecord(buffer, position)) {
+                Intent intent = decodeIntent(buffer, crc);
+                if (intent == null) {
+                    // A torn write at the tail; its transfer never got past BEGIN.
+                    break;
+                }
+                State state = State.values()[buffer.get(8)];
+                if (state == State.BEGIN) {
+                    open.put(intent.transfer_id(), intent);
+                } else {
+                    open.remove(intent.transfer_id());
+                }
+                last = Math.max(last, intent.transfer_id());
+                position += record_size;
+            }
+            logEnd = position;
+            log.truncate(position);
+        } catch (IOException e) {
+            throw new SQLException("Cannot read the coordinator log", e);
+        }
+        for (Intent intent : open.values()) {
+            try {
+                append(intent, resolve(intent), false);
+                recovered.increment();
+            } catch (SQLException e) {
+                // A shard that is down now is retried by the resolver.
+                unresolved.add(intent);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            try {
+                synchronized (appendLock) {
+                    log.truncate(0);
+                    logEnd = 0;
+                }
+                log.force(true);
+            } catch (IOException e) {
+                throw new SQLException("Cannot reset the coordinator log", e);
+            }
+        }
+        return last;
+    }
+
+    // False at the end of the log, including a partly written last record.
+    private boolean readRecord(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) <= 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private static void encode(ByteBuffer buffer, Intent intent, State state, CRC32 crc) {
+        buffer.putLong(intent.transfer_id())
+                .put((byte) state.ordinal())
+                .putLong(intent.sender_account_number())
+                .putLong(intent.receiver_account_number())
+                .putLong(intent.amount());
+        crc.reset();
+        crc.update(buffer.array(), 0, record_size - 4);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private static Intent decodeIntent(ByteBuffer buffer, CRC32 crc) {
+        crc.reset();
+        crc.update(buffer.array(), 0, record_size - 4);
+        if ((int) crc.getValue() != buffer.getInt(record_size - 4)) {
+            return null;
+        }
+        int state = buffer.get(8);
+        if (state < 0 || state >= State.values().length) {
+            return null;
+        }
+        return new Intent(buffer.getLong(0), buffer.getLong(9), buffer.getLong(17), buffer.getLong(25));
+    }
+
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    public long getAborted() {
+        return aborted.sum();
+    }
+
+    public long getRefunded() {
+        return refunded.sum();
+    }
+
+    public long getPending() {
+        return pending.sum();
+    }
+
+    public int getUnresolved() {
+        return unresolved.size();
+    }
+
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    public long getLogForces() {
+        return logForces.sum();
+    }
+
+    public String stats() {
+        return String.format("Transfer coordinator: transfers=%d committed=%d aborted=%d refunded=%d pending=%d"
+                        + " unresolved=%d recovered=%d logForces=%d",
+                getTransfers(), getCommitted(), getAborted(), getRefunded(), getPending(), getUnresolved(),
+                getRecovered(), getLogForces());
+    }
+
+    /**
+     * Stops the resolver. Transfers still unresolved are picked up from the log
+     * on the next start.
+     */
+    @Override
+    public void close() {
+        resolver.shutdownNow();
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * The result of one row of {@link AccountManager#transferBatch}.
+ */
+public record TransferResult(Transfer transfer, TransactionStatus status, String message) {
+
+    public boolean isSuccess() {
+        return status == TransactionStatus.SUCCESS;
+    }
+}
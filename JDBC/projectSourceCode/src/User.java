@@ -1,54 +1,64 @@
 
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Scanner;
 
 public class User {
-    Scanner sc;
-    Connection con;
-    User(Connection con,Scanner sc){
-        this.con=con;
-        this.sc=sc;
+    // With shards the account is found through the home shard's directory, and its balance on its own shard.
+    private static final String sharded_login_query = "SELECT u.email, d.account_number FROM User u "
+            + "LEFT JOIN account_directory d ON d.email = u.email WHERE u.email =? AND u.password =?";
+    private static final String balance_query = "SELECT balance FROM Accounts WHERE account_number = ?";
+
+    RoutingDataSource dataSource;
+    private final ShardRouter router;
+    private final BloomFilter emailFilter;
+    User(ShardRouter router) throws SQLException {
+        this.router=router;
+        this.dataSource=router.home();
+        this.emailFilter = BloomFilter.ofEmails(dataSource.primary(), "User");
+    }
+
+    public BloomFilter emailFilter() {
+        return emailFilter;
     }
-    public void register(){
-        sc.nextLine();
-        System.out.print("Full Name: ");
-        String full_name = sc.nextLine();
-        System.out.print("Email: ");
-        String email = sc.nextLine();
+    public OperationResult register(String full_name, String email, String password){
         if(user_exists(email)){
-            System.out.println("user already exists");
-            return;
+            return OperationResult.failure(TransactionStatus.ALREADY_EXISTS, "user already exists");
         }
-        System.out.print("Password: ");
-        String password = sc.nextLine();
-        
+
         String register_query = "INSERT INTO User(full_name, email, password) VALUES(?, ?, ?)";
-        try {
-            PreparedStatement preparedStatement = con.prepareStatement(register_query);
+        // Add before inserting, so a committed email is never missing from the filter.
+        emailFilter.add(email);
+        try (PooledConnection pooled = dataSource.borrow(email)) {
+            PreparedStatement preparedStatement = pooled.prepare(register_query);
             preparedStatement.setString(1, full_name);
             preparedStatement.setString(2, email);
             preparedStatement.setString(3, password);
             int affectedRows = preparedStatement.executeUpdate();
             if (affectedRows > 0) {
-                System.out.println("Registration Successfull!");
-            } else {
-                System.out.println("Registration Failed!");
+                return OperationResult.success("Registration Successfull!");
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return OperationResult.failure(TransactionStatus.FAILED, "Registration Failed!");
     }
     public boolean user_exists(String email){
+        if(!emailFilter.mightContain(email)){
+            return false;
+        }
         String login_query="SELECT email FROM User WHERE email =?" ;
-        try {
-            PreparedStatement preparedStatement = con.prepareStatement(login_query);
+        try (PooledConnection pooled = dataSource.borrowRead(email)) {
+            PreparedStatement preparedStatement = pooled.prepare(login_query);
             preparedStatement.setString(1, email);
-            ResultSet resultSet = preparedStatement.executeQuery();
-           return resultSet.next();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()){
+                    return true;
+                }
+                emailFilter.recordFalsePositive();
+                return false;
+            }
          } catch (SQLException e) {
             System.out.println("Database connection failed.");
             e.printStackTrace();
@@ -57,23 +67,28 @@ public class User {
          return false;
     
     }
-     public String login() {
-        sc.nextLine();
-        System.out.print("Email: ");
-        String email = sc.nextLine();
-        System.out.print("Password: ");
-        String password = sc.nextLine();
-
-        String login_query="SELECT * FROM user WHERE email =? AND password =?";
-        try {
-            PreparedStatement preparedStatement = con.prepareStatement(login_query);
+    /**
+     * Checks the credentials and loads the user's account in the same round trip,
+     * or in two with shards. Returns {@code null} if the credentials do not match.
+     */
+    public Session login(String email, String password) {
+        if (router.isSharded()) {
+            return shardedLogin(email, password);
+        }
+        String login_query="SELECT u.email, a.account_number, a.balance FROM User u "
+                + "LEFT JOIN Accounts a ON a.email = u.email WHERE u.email =? AND u.password =?";
+        try (PooledConnection pooled = dataSource.primary().borrow()) {
+            PreparedStatement preparedStatement = pooled.prepare(login_query);
             preparedStatement.setString(1, email);
             preparedStatement.setString(2, password);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if(resultSet.next()){
-                return email;
-            }else{
-                return null;
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()){
+                    // account_number is NULL, read as 0, when the user has no account yet.
+                    return new Session(resultSet.getString("email"), resultSet.getLong("account_number"),
+                            resultSet.getLong("balance"));
+                }else{
+                    return null;
+                }
             }
          } catch (SQLException e) {
             System.out.println("Database connection failed.");
@@ -82,5 +97,38 @@ public class User {
 
          return null;
 
-     }
+    }
+
+    private Session shardedLogin(String email, String password) {
+        try {
+            long account_number;
+            try (PooledConnection pooled = dataSource.primary().borrow()) {
+                PreparedStatement preparedStatement = pooled.prepare(sharded_login_query);
+                preparedStatement.setString(1, email);
+                preparedStatement.setString(2, password);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if(!resultSet.next()){
+                        return null;
+                    }
+                    account_number = resultSet.getLong("account_number");
+                }
+            }
+            if (account_number == 0) {
+                return new Session(email, 0, 0);
+            }
+            try (PooledConnection pooled = router.forAccount(account_number).primary().borrow()) {
+                PreparedStatement preparedStatement = pooled.prepare(balance_query);
+                preparedStatement.setLong(1, account_number);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    // A directory claim whose account was never created is no account.
+                    return resultSet.next() ? new Session(email, account_number, resultSet.getLong("balance"))
+                            : new Session(email, 0, 0);
+                }
+            }
+         } catch (SQLException e) {
+            System.out.println("Database connection failed.");
+            e.printStackTrace();
+         }
+         return null;
+    }
 }
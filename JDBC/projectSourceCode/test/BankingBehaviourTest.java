@@ -0,0 +1,505 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Behaviour tests for the banking flows, run against in-process H2 databases in
+ * MySQL mode so that no MySQL server is needed. There is no test framework: each
+ * check is a method that throws {@link AssertionError} when the behaviour is
+ * wrong, and the run exits non-zero if any check failed. Compile against the
+ * sources and run with the H2 jar on the classpath (JDK 21 or later):
+ *
+ * <pre>
+ * javac -d out src/*.java
+ * javac -cp out -d test-out test/*.java
+ * java -cp out:test-out:h2.jar BankingBehaviourTest
+ * </pre>
+ *
+ * Each check opens its own databases, so they can run in any order.
+ */
+public class BankingBehaviourTest {
+    private static final String url_options = ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+    private static final String security_pin = "1234";
+    private static final String password = "secret";
+    private static final long opening_balance = Money.ofRupees(10_000);
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int failed = 0;
+        failed += run("opposite transfers lock in order", BankingBehaviourTest::oppositeTransfersDoNotDeadlock);
+        failed += run("batch reports every row", BankingBehaviourTest::batchReportsEveryRow);
+        failed += run("idempotent replay", BankingBehaviourTest::idempotentReplay);
+        failed += run("idempotent replay after a restart", BankingBehaviourTest::idempotentReplayAfterRestart);
+        failed += run("sharded login", BankingBehaviourTest::shardedLogin);
+        failed += run("cross-shard transfer recovery", BankingBehaviourTest::crossShardTransferRecovery);
+        failed += run("refunded transfer rewrites its key", BankingBehaviourTest::refundedTransferRewritesItsKey);
+        failed += run("failed startup stops its threads", BankingBehaviourTest::failedStartupStopsItsThreads);
+        failed += run("resumable interest accrual", BankingBehaviourTest::resumableInterestAccrual);
+        if (failed > 0) {
+            System.out.println(failed + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static int run(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("PASS " + name);
+            return 0;
+        } catch (Throwable e) {
+            System.out.println("FAIL " + name + ": " + e);
+            e.printStackTrace(System.out);
+            return 1;
+        }
+    }
+
+    /*
+     * Transfers A to B and B to A at the same time. Both lock the two rows, so
+     * unless they lock them in the same order they deadlock or time out.
+     */
+    static void oppositeTransfersDoNotDeadlock() throws Exception {
+        String url = url("ordered_locking");
+        int threads = 16;
+        int transfers = 50;
+        try (BankingSystem system = system(url, threads)) {
+            AccountService service = system.service();
+            long a = openAccount(service, "a@ordered.test", opening_balance);
+            long b = openAccount(service, "b@ordered.test", opening_balance);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<List<OperationResult>>> futures = new ArrayList<>();
+            try {
+                for (int t = 0; t < threads; t++) {
+                    long sender = t % 2 == 0 ? a : b;
+                    long receiver = t % 2 == 0 ? b : a;
+                    futures.add(executor.submit(() -> {
+                        List<OperationResult> results = new ArrayList<>();
+                        for (int i = 0; i < transfers; i++) {
+                            results.add(service.transfer(sender, receiver, Money.ofRupees(1), security_pin));
+                        }
+                        return results;
+                    }));
+                }
+                for (Future<List<OperationResult>> future : futures) {
+                    for (OperationResult result : future.get()) {
+                        check(result.isSuccess(), "every transfer succeeds, got " + result);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+            // Half the threads send each way, so the balances end where they started.
+            checkEquals(opening_balance, balance(service, a), "balance of A");
+            checkEquals(opening_balance, balance(service, b), "balance of B");
+            checkEquals(0L, ledgerSum(url, a) - opening_balance, "ledger of A");
+        }
+    }
+
+    /*
+     * A batch with good rows and several kinds of bad ones, including a row the
+     * database refuses so that its chunk has to be replayed row by row.
+     */
+    static void batchReportsEveryRow() throws Exception {
+        String url = url("batch_rows");
+        try (BankingSystem system = system(url, 4)) {
+            AccountService service = system.service();
+            long a = openAccount(service, "a@batch.test", Money.ofRupees(100));
+            long b = openAccount(service, "b@batch.test", Money.ofRupees(100));
+            long c = openAccount(service, "c@batch.test", Money.ofRupees(100));
+            // c may not go over Rs.150, so the last good-looking row fails in the database.
+            execute(url, "ALTER TABLE Accounts ADD CONSTRAINT batch_cap CHECK (account_number <> " + c
+                    + " OR balance <= " + Money.ofRupees(150) + ")");
+            List<Transfer> batch = List.of(
+                    new Transfer(a, b, Money.ofRupees(30)),
+                    new Transfer(a, b, Money.ofRupees(80)),
+                    new Transfer(a, 999_999_999L, Money.ofRupees(1)),
+                    new Transfer(b, a, 0),
+                    new Transfer(b, a, Money.ofRupees(10)),
+                    new Transfer(b, c, Money.ofRupees(60)));
+            List<TransferResult> results = service.transferBatch(batch);
+
+            checkEquals(batch.size(), results.size(), "one result per row");
+            for (int i = 0; i < results.size(); i++) {
+                check(results.get(i) != null && results.get(i).status() != null, "row " + i + " has a result");
+                checkEquals(batch.get(i), results.get(i).transfer(), "row " + i + " reports its own transfer");
+            }
+            checkEquals(TransactionStatus.SUCCESS, results.get(0).status(), "row 0");
+            // Rs.70 is left after row 0.
+            checkEquals(TransactionStatus.INSUFFICIENT_BALANCE, results.get(1).status(), "row 1");
+            checkEquals(TransactionStatus.INVALID_ACCOUNT, results.get(2).status(), "row 2");
+            checkEquals(TransactionStatus.INVALID_AMOUNT, results.get(3).status(), "row 3");
+            checkEquals(TransactionStatus.SUCCESS, results.get(4).status(), "row 4");
+            checkEquals(TransactionStatus.FAILED, results.get(5).status(), "row 5");
+
+            checkEquals(Money.ofRupees(80), balance(service, a), "balance of A");
+            checkEquals(Money.ofRupees(120), balance(service, b), "balance of B");
+            checkEquals(Money.ofRupees(100), balance(service, c), "balance of C");
+        }
+    }
+
+    /*
+     * A retried request is applied once and answered as the first time; the same
+     * key on a different request is a conflict.
+     */
+    static void idempotentReplay() throws Exception {
+        String url = url("idempotent_replay");
+        int threads = 16;
+        try (BankingSystem system = system(url, threads)) {
+            AccountService service = system.service();
+            long a = openAccount(service, "a@idempotent.test", opening_balance);
+            long b = openAccount(service, "b@idempotent.test", opening_balance);
+
+            OperationResult first = service.credit(a, Money.ofRupees(100), security_pin, "credit-1");
+            OperationResult replay = service.credit(a, Money.ofRupees(100), security_pin, "credit-1");
+            check(first.isSuccess(), "first credit succeeds, got " + first);
+            checkEquals(first.status(), replay.status(), "replayed status");
+            checkEquals(first.balance(), replay.balance(), "replayed balance");
+            checkEquals(opening_balance + Money.ofRupees(100), balance(service, a), "credited once");
+
+            OperationResult conflict = service.credit(a, Money.ofRupees(200), security_pin, "credit-1");
+            checkEquals(TransactionStatus.CONFLICT, conflict.status(), "same key, different amount");
+            OperationResult reused = service.debit(a, Money.ofRupees(100), security_pin, "credit-1");
+            checkEquals(TransactionStatus.CONFLICT, reused.status(), "same key, different operation");
+            checkEquals(opening_balance + Money.ofRupees(100), balance(service, a), "nothing applied on conflict");
+
+            try {
+                service.credit(a, Money.ofRupees(1), security_pin, "");
+                throw new AssertionError("an empty idempotency key should be refused");
+            } catch (IllegalArgumentException expected) {
+                // The call that threw must not leave its stats behind for the next one on this thread.
+                check(Metrics.current.get() == null, "no operation left on the thread");
+            }
+
+            // Concurrent retries of one transfer.
+            List<CompletableFuture<OperationResult>> retries = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (int t = 0; t < threads; t++) {
+                    retries.add(CompletableFuture.supplyAsync(
+                            () -> service.transfer(a, b, Money.ofRupees(500), security_pin, "transfer-1"), executor));
+                }
+                for (CompletableFuture<OperationResult> retry : retries) {
+                    checkEquals(TransactionStatus.SUCCESS, retry.join().status(), "every retry reports the transfer");
+                }
+            } finally {
+                executor.shutdown();
+            }
+            checkEquals(opening_balance - Money.ofRupees(400), balance(service, a), "transferred once from A");
+            checkEquals(opening_balance + Money.ofRupees(500), balance(service, b), "transferred once to B");
+        }
+    }
+
+    /*
+     * The key table, not the memory of the process that applied it, decides
+     * whether a retry runs again.
+     */
+    static void idempotentReplayAfterRestart() throws Exception {
+        String url = url("idempotent_restart");
+        long account;
+        OperationResult first;
+        try (BankingSystem system = system(url, 4)) {
+            AccountService service = system.service();
+            account = openAccount(service, "a@restart.test", opening_balance);
+            first = service.debit(account, opening_balance, security_pin, "debit-all");
+            check(first.isSuccess(), "first debit succeeds, got " + first);
+        }
+        try (BankingSystem system = system(url, 4)) {
+            AccountService service = system.service();
+            OperationResult replay = service.debit(account, opening_balance, security_pin, "debit-all");
+            checkEquals(first, replay, "replayed after a restart");
+            OperationResult conflict = service.debit(account, Money.ofRupees(1), security_pin, "debit-all");
+            checkEquals(TransactionStatus.CONFLICT, conflict.status(), "same key, different amount after a restart");
+            checkEquals(0L, balance(service, account), "debited once");
+        }
+    }
+
+    /*
+     * Users live on the home shard and their accounts on any shard; login has to
+     * find the account wherever it is.
+     */
+    static void shardedLogin() throws Exception {
+        String home = url("login_home");
+        List<String> shards = List.of(url("login_shard1"), url("login_shard2"));
+        Path coordinatorLog = Files.createTempFile("coordinator", ".log");
+        try (BankingSystem system = new BankingSystem(home, "sa", "", 4, false, null, List.of(),
+                shards, coordinatorLog, null)) {
+            AccountService service = system.service();
+            boolean[] shardUsed = new boolean[shards.size() + 1];
+            for (int i = 0; i < 12; i++) {
+                String email = "user" + i + "@login.test";
+                long account = openAccount(service, email, Money.ofRupees(100 + i));
+                shardUsed[(int) Math.floorMod(account, (long) shardUsed.length)] = true;
+                Session session = service.login(email, password);
+                check(session != null, "login of " + email);
+                checkEquals(account, session.account_number(), "account of " + email);
+                checkEquals(Money.ofRupees(100 + i), session.balance(), "balance of " + email);
+            }
+            for (int shard = 0; shard < shardUsed.length; shard++) {
+                check(shardUsed[shard], "an account opened on shard " + shard);
+            }
+            check(service.login("user0@login.test", "wrong") == null, "login with a wrong password");
+        } finally {
+            Files.deleteIfExists(coordinatorLog);
+        }
+    }
+
+    /*
+     * A cross-shard transfer whose credit cannot be written is reported PENDING,
+     * and finished from the coordinator log after a restart.
+     */
+    static void crossShardTransferRecovery() throws Exception {
+        String home = url("recovery_home");
+        String other = url("recovery_shard1");
+        List<String> shards = List.of(other);
+        Path coordinatorLog = Files.createTempFile("coordinator", ".log");
+        try {
+            long sender;
+            long receiver;
+            try (BankingSystem system = new BankingSystem(home, "sa", "", 4, false, null, List.of(),
+                    shards, coordinatorLog, null)) {
+                AccountService service = system.service();
+                long[] accounts = openOnBothShards(service, "recovery.test");
+                sender = accounts[0];
+                receiver = accounts[1];
+                String receiverUrl = receiver % 2 == 0 ? home : other;
+
+                OperationResult committed = service.transfer(sender, receiver, Money.ofRupees(100), security_pin);
+                checkEquals(TransactionStatus.SUCCESS, committed.status(), "cross-shard transfer");
+                checkEquals(opening_balance - Money.ofRupees(100), balance(service, sender), "sender after transfer");
+                checkEquals(opening_balance + Money.ofRupees(100), balance(service, receiver), "receiver after transfer");
+
+                // Without its shard_transfers table the receiver's shard cannot take the credit.
+                execute(receiverUrl, "ALTER TABLE shard_transfers RENAME TO shard_transfers_away");
+                OperationResult pending = service.transfer(sender, receiver, Money.ofRupees(250), security_pin);
+                checkEquals(TransactionStatus.PENDING, pending.status(), "transfer with phase two down");
+                checkEquals(opening_balance - Money.ofRupees(350), balance(service, sender), "sender is debited");
+                check(system.stats().contains("pending=1"), "pending transfer is counted");
+            }
+            String receiverUrl = receiver % 2 == 0 ? home : other;
+            execute(receiverUrl, "ALTER TABLE shard_transfers_away RENAME TO shard_transfers");
+            try (BankingSystem system = new BankingSystem(home, "sa", "", 4, false, null, List.of(),
+                    shards, coordinatorLog, null)) {
+                AccountService service = system.service();
+                check(system.stats().contains("recovered=1"), "transfer is recovered on startup");
+                checkEquals(opening_balance - Money.ofRupees(350), balance(service, sender), "sender after recovery");
+                checkEquals(opening_balance + Money.ofRupees(350), balance(service, receiver), "receiver after recovery");
+                checkEquals(0L, Files.size(coordinatorLog), "coordinator log is reset");
+            }
+        } finally {
+            Files.deleteIfExists(coordinatorLog);
+        }
+    }
+
+    /*
+     * A keyed cross-shard transfer whose receiver is gone by the time the
+     * credit is recovered is refunded, and a retry of the key is told so.
+     */
+    static void refundedTransferRewritesItsKey() throws Exception {
+        String home = url("refund_home");
+        String other = url("refund_shard1");
+        List<String> shards = List.of(other);
+        Path coordinatorLog = Files.createTempFile("coordinator", ".log");
+        try {
+            long sender;
+            long receiver;
+            try (BankingSystem system = new BankingSystem(home, "sa", "", 4, false, null, List.of(),
+                    shards, coordinatorLog, null)) {
+                AccountService service = system.service();
+                long[] accounts = openOnBothShards(service, "refund.test");
+                sender = accounts[0];
+                receiver = accounts[1];
+                execute(other, "ALTER TABLE shard_transfers RENAME TO shard_transfers_away");
+                OperationResult pending = service.transfer(sender, receiver, Money.ofRupees(250), security_pin, "refund-1");
+                checkEquals(TransactionStatus.PENDING, pending.status(), "transfer with phase two down");
+            }
+            execute(other, "ALTER TABLE shard_transfers_away RENAME TO shard_transfers");
+            execute(other, "DELETE FROM Accounts WHERE account_number = " + receiver);
+            try (BankingSystem system = new BankingSystem(home, "sa", "", 4, false, null, List.of(),
+                    shards, coordinatorLog, null)) {
+                AccountService service = system.service();
+                check(system.stats().contains("refunded=1"), "transfer is refunded on startup");
+                checkEquals(opening_balance, balance(service, sender), "sender after the refund");
+                checkEquals("INVALID_ACCOUNT", keyStatus(home, "refund-1"), "stored result of the key");
+                OperationResult retry = service.transfer(sender, receiver, Money.ofRupees(250), security_pin, "refund-1");
+                checkEquals(TransactionStatus.INVALID_ACCOUNT, retry.status(), "retry of the refunded transfer");
+                checkEquals(opening_balance, balance(service, sender), "sender after the retry");
+            }
+        } finally {
+            Files.deleteIfExists(coordinatorLog);
+        }
+    }
+
+    /*
+     * The coordinator log cannot be opened, long after the idempotency store
+     * has started its purger; the failed constructor must stop it again.
+     */
+    static void failedStartupStopsItsThreads() throws Exception {
+        Path directory = Files.createTempDirectory("coordinator");
+        try {
+            new BankingSystem(url("failed_home"), "sa", "", 4, false, null, List.of(),
+                    List.of(url("failed_shard1")), directory, null).close();
+            throw new AssertionError("a directory should not open as the coordinator log");
+        } catch (SQLException expected) {
+            // The threads are stopped before the exception leaves the constructor.
+        } finally {
+            Files.deleteIfExists(directory);
+        }
+        for (int i = 0; i < 100 && purgerRunning(); i++) {
+            Thread.sleep(10);
+        }
+        check(!purgerRunning(), "the idempotency key purger is stopped");
+    }
+
+    private static boolean purgerRunning() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().equals("idempotency-key-purger"));
+    }
+
+    /*
+     * A run that stops part way leaves its committed chunks; the next run for the
+     * date finishes the rest without crediting any account twice.
+     */
+    static void resumableInterestAccrual() throws Exception {
+        String url = url("resumable_accrual");
+        LocalDate date = LocalDate.of(2024, 1, 31);
+        long rateBps = 3650;
+        int accountCount = 50;
+        try (BankingSystem system = system(url, 4)) {
+            AccountService service = system.service();
+            List<Long> accounts = new ArrayList<>();
+            for (int i = 0; i < accountCount; i++) {
+                accounts.add(openAccount(service, "user" + i + "@accrual.test", opening_balance + Money.ofRupees(i)));
+            }
+            // The 25th account refuses its credit, so the run stops in its third chunk of ten.
+            long refusing = accounts.get(24);
+            execute(url, "ALTER TABLE Accounts ADD CONSTRAINT accrual_stop CHECK (account_number <> " + refusing
+                    + " OR balance <= " + (opening_balance + Money.ofRupees(24)) + ")");
+            InterestAccrual accrual = system.interestAccrual(1, 1, 10);
+            try {
+                accrual.run(date, rateBps);
+                throw new AssertionError("the first run should stop at account " + refusing);
+            } catch (SQLException expected) {
+                // The first two chunks are committed.
+            }
+            checkEquals(20L, interestEntries(url), "accounts credited before the stop");
+
+            execute(url, "ALTER TABLE Accounts DROP CONSTRAINT accrual_stop");
+            InterestAccrual.Report report = accrual.run(date, rateBps);
+            checkEquals(30L, report.credited(), "accounts credited by the resumed run");
+            checkEquals(0L, system.interestAccrual(1, 1, 10).run(date, rateBps).credited(), "a finished date is not rerun");
+
+            checkEquals((long) accountCount, interestEntries(url), "interest entries");
+            for (int i = 0; i < accountCount; i++) {
+                long opened = opening_balance + Money.ofRupees(i);
+                checkEquals(opened + InterestAccrual.interestOn(opened, rateBps),
+                        balance(service, accounts.get(i)), "balance of account " + i);
+            }
+        }
+    }
+
+    private static String url(String name) {
+        return "jdbc:h2:mem:" + name + url_options;
+    }
+
+    private static BankingSystem system(String url, int poolSize) throws SQLException {
+        return new BankingSystem(url, "sa", "", poolSize, false, null, List.of(), List.of(), null, null);
+    }
+
+    private static long openAccount(AccountService service, String email, long balance) {
+        OperationResult registered = service.register(email, email, password);
+        check(registered.isSuccess(), "register " + email + ", got " + registered);
+        OperationResult opened = service.openAccount(email, email, balance, security_pin);
+        check(opened.isSuccess(), "open an account for " + email + ", got " + opened);
+        return opened.account_number();
+    }
+
+    // Opens accounts until one lands on each of two shards; returns {home shard, other shard}.
+    private static long[] openOnBothShards(AccountService service, String domain) {
+        long[] accounts = new long[2];
+        boolean[] found = new boolean[2];
+        for (int i = 0; !found[0] || !found[1]; i++) {
+            check(i < 64, "accounts open on both shards");
+            long account = openAccount(service, "user" + i + "@" + domain, opening_balance);
+            int shard = (int) (account % 2);
+            if (!found[shard]) {
+                accounts[shard] = account;
+                found[shard] = true;
+            }
+        }
+        return accounts;
+    }
+
+    private static long balance(AccountService service, long account_number) {
+        OperationResult result = service.balance(account_number, security_pin);
+        check(result.isSuccess(), "balance of " + account_number + ", got " + result);
+        return result.balance();
+    }
+
+    private static void execute(String url, String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+
+    private static long ledgerSum(String url, long account_number) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             PreparedStatement preparedStatement = connection.prepareStatement(
+                     "SELECT COALESCE(SUM(amount), 0) FROM Ledger WHERE account_number = ?")) {
+            preparedStatement.setLong(1, account_number);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }
+    }
+
+    private static String keyStatus(String url, String idempotency_key) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             PreparedStatement preparedStatement = connection.prepareStatement(
+                     "SELECT status FROM idempotency_keys WHERE idempotency_key = ?")) {
+            preparedStatement.setString(1, idempotency_key);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+
+    private static long interestEntries(String url) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT COUNT(*), COUNT(DISTINCT account_number) FROM Ledger WHERE entry_type = 'INTEREST'")) {
+            resultSet.next();
+            checkEquals(resultSet.getLong(1), resultSet.getLong(2), "interest entries per account");
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    private static void checkEquals(Object expected, Object actual, String what) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+}